@@ -0,0 +1,99 @@
+package dev.johanness.grammarkit.processor;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Trees;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.processing.Processor;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilities shared by the benchmarks.
+ */
+final class Benchmarks {
+  private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+  private Benchmarks() {
+  }
+
+  /**
+   * Runs only the annotation processing of javac with the given processor.
+   *
+   * @return whether the compilation succeeded
+   */
+  static boolean process(
+      @NotNull Processor processor, @NotNull Path outputDir,
+      @NotNull List<String> options, @NotNull List<JavaFileObject> sources)
+  {
+    try (StandardJavaFileManager fileManager = COMPILER.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+      Files.createDirectories(outputDir);
+      List<String> allOptions = new ArrayList<>(options);
+      allOptions.addAll(List.of(
+          "-proc:only",
+          "-source", "11",
+          "-classpath", System.getProperty("java.class.path"),
+          "-s", outputDir.toString(),
+          "-d", outputDir.toString()));
+      JavaCompiler.CompilationTask task = COMPILER.getTask(
+          null, fileManager, new DiagnosticCollector<>(), allOptions, null, sources);
+      task.setProcessors(List.of(processor));
+      return task.call();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Parses and analyzes the given sources. Errors are ignored, as the
+   * sources usually reference classes which are generated by Grammar-Kit.
+   */
+  static @NotNull MyJavaHelper analyze(@NotNull List<JavaFileObject> sources) {
+    // The file manager stays open, as javac may still complete classes
+    // lazily while the helper is used.
+    StandardJavaFileManager fileManager = COMPILER.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+    JavacTask task = (JavacTask) COMPILER.getTask(
+        null, fileManager, new DiagnosticCollector<>(),
+        List.of("-proc:none", "-source", "11", "-classpath", System.getProperty("java.class.path")),
+        null, sources);
+    try {
+      task.analyze();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new MyJavaHelper(task.getElements(), task.getTypes(), Trees.instance(task));
+  }
+
+  static void deleteRecursively(@NotNull Path path) throws IOException {
+    Files.walkFileTree(path, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null)
+          throw exc;
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,60 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.LightPsi;
+import org.intellij.grammar.generator.ParserGenerator;
+import org.intellij.grammar.psi.BnfFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of sources with {@link ParserGenerator#generate()}. The BNF
+ * file is parsed once, and the generated sources are discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GenerateBenchmark {
+  @Param({"10", "100", "1000", "5000"})
+  public int rules;
+
+  @Param({"false", "true"})
+  public boolean psiImplUtilClass;
+
+  private GrammarKitEnvironment environment;
+  private MyJavaHelper javaHelper;
+  private BnfFile bnfFile;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SyntheticGrammar grammar = new SyntheticGrammar(rules, 10, psiImplUtilClass);
+    environment = GrammarKitEnvironment.getInstance();
+    javaHelper = Benchmarks.analyze(grammar.getSources());
+    bnfFile = (BnfFile) LightPsi.parseFile("synth.bnf", grammar.getBnf(), environment.getParserDefinition());
+  }
+
+  @Benchmark
+  public void generate() throws IOException {
+    // The helper is bound per call, as JMH may use another thread than for the setup.
+    try (DispatchingJavaHelper.Scope ignored = environment.bindJavaHelper(javaHelper)) {
+      new SinkParserGenerator(bnfFile, "", (className, originatingClasses) -> Writer.nullWriter(), List.of()).generate();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.psi.NavigatablePsiElement;
+import org.intellij.grammar.java.JavaHelper.MethodType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of Grammar-Kit against a {@code psiImplUtilClass} with many
+ * overloads whose parameter types are not generated yet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JavaHelperBenchmark {
+  @Param({"100", "1000", "5000"})
+  public int rules;
+
+  /** Whether the caches of {@link MyJavaHelper} survive between queries. */
+  @Param({"true", "false"})
+  public boolean cached;
+
+  private MyJavaHelper helper;
+  private List<NavigatablePsiElement> methods;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    helper = Benchmarks.analyze(new SyntheticGrammar(rules, 10, true).getSources());
+    methods = helper.findClassMethods(SyntheticGrammar.UTIL_CLASS, MethodType.STATIC, "describe", -1);
+  }
+
+  @Benchmark
+  public List<NavigatablePsiElement> findClassMethods() {
+    prepare();
+    return helper.findClassMethods(SyntheticGrammar.UTIL_CLASS, MethodType.STATIC, "describe", -1);
+  }
+
+  @Benchmark
+  public List<NavigatablePsiElement> isAssignable() {
+    prepare();
+    String psiClass = SyntheticGrammar.PACKAGE + ".SynthRule" + nextIndex(rules);
+    return helper.findClassMethods(SyntheticGrammar.UTIL_CLASS, MethodType.STATIC, "describe", 1, psiClass);
+  }
+
+  @Benchmark
+  public List<String> resolve() {
+    prepare();
+    return helper.getMethodTypes(methods.get(nextIndex(methods.size())));
+  }
+
+  private void prepare() {
+    if (!cached) {
+      helper.startRound();
+    }
+  }
+
+  private int nextIndex(int size) {
+    next = (next + 1) % size;
+    return next;
+  }
+}
@@ -0,0 +1,47 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.psi.PsiFile;
+import org.intellij.grammar.BnfParserDefinition;
+import org.intellij.grammar.LightPsi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of BNF files with {@link LightPsi#parseFile(String, String, com.intellij.lang.ParserDefinition)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+  @Param({"10", "100", "1000", "5000"})
+  public int rules;
+
+  private String text;
+  private BnfParserDefinition parserDefinition;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    text = new SyntheticGrammar(rules, 10, true).getBnf();
+    parserDefinition = GrammarKitEnvironment.getInstance().getParserDefinition();
+  }
+
+  @Benchmark
+  public PsiFile parse() {
+    return LightPsi.parseFile("synth.bnf", text, parserDefinition);
+  }
+}
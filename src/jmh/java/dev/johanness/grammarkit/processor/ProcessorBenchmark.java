@@ -0,0 +1,64 @@
+package dev.johanness.grammarkit.processor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end runs of {@link GrammarKitProcessor} within javac.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+  @Param({"10", "100", "1000", "5000"})
+  public int rules;
+
+  @Param({"false", "true"})
+  public boolean psiImplUtilClass;
+
+  private Path tempDir;
+  private Path bnfFile;
+  private List<JavaFileObject> sources;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticGrammar grammar = new SyntheticGrammar(rules, 10, psiImplUtilClass);
+    tempDir = Files.createTempDirectory("grammar-kit-benchmark");
+    bnfFile = tempDir.resolve("synth.bnf");
+    Files.writeString(bnfFile, grammar.getBnf());
+    sources = grammar.getSources();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Benchmarks.deleteRecursively(tempDir);
+  }
+
+  @Benchmark
+  public boolean process() {
+    return Benchmarks.process(
+        new GrammarKitProcessor(), tempDir.resolve("out"),
+        List.of("-Aparser=" + bnfFile), sources);
+  }
+}
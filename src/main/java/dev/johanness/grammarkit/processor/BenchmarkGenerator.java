@@ -0,0 +1,223 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.psi.BnfFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Generates a JMH benchmark next to the parser of a BNF file. The benchmark
+ * parses one file of the corpus per operation with
+ * {@link org.intellij.grammar.LightPsi}. It reports the number of nodes
+ * per second as an additional counter. The bytes allocated per parse are
+ * reported by the GC profiler of JMH as {@code gc.alloc.rate.norm}. The
+ * corpus is kept as given, so that relative paths are resolved against the
+ * working directory of JMH.
+ */
+final class BenchmarkGenerator {
+  private static final String SUFFIX = "Benchmark";
+
+  private final @NotNull Path corpus;
+  private final @NotNull List<String> parserDefinitions = new ArrayList<>();
+
+  BenchmarkGenerator(@NotNull Path corpus) {
+    this.corpus = corpus;
+  }
+
+  /**
+   * Returns a description of everything besides the grammar which affects
+   * the generated benchmarks.
+   */
+  synchronized @NotNull String describeSettings() {
+    return "corpus=" + corpus + ", parserDefinitions=" + parserDefinitions.stream().sorted().collect(Collectors.toList());
+  }
+
+  /**
+   * Adds implementations of {@code ParserDefinition} which may be used by
+   * benchmarks. The benchmark uses the one closest to its parser.
+   */
+  synchronized void addParserDefinitions(@NotNull List<String> classNames) {
+    for (String className : classNames) {
+      if (!parserDefinitions.contains(className)) {
+        parserDefinitions.add(className);
+      }
+    }
+  }
+
+  void generate(
+      @NotNull BnfFile bnfFile,
+      @NotNull String fileName,
+      @NotNull SourceSink sink,
+      @NotNull List<String> originatingClasses) throws IOException
+  {
+    String parserClass = bnfFile.findAttributeValue(null, KnownAttribute.PARSER_CLASS, null);
+    String elementTypeHolderClass = bnfFile.findAttributeValue(null, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS, null);
+    if (parserClass == null || elementTypeHolderClass == null) {
+      return;
+    }
+    String parserDefinition = findParserDefinition(parserClass);
+    String packageName = packageOf(parserClass);
+    String simpleName = parserClass.substring(parserClass.lastIndexOf('.') + 1) + SUFFIX;
+    String className = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+
+    try (Writer writer = sink.openSource(className, originatingClasses)) {
+      if (!packageName.isEmpty()) {
+        writer.write("package " + packageName + ";\n\n");
+      }
+      writer.write(
+          "import com.intellij.lang.ASTNode;\n" +
+          "import com.intellij.lang.ParserDefinition;\n" +
+          "import com.intellij.psi.PsiFile;\n" +
+          "import org.intellij.grammar.LightPsi;\n" +
+          "import org.openjdk.jmh.annotations.AuxCounters;\n" +
+          "import org.openjdk.jmh.annotations.Benchmark;\n" +
+          "import org.openjdk.jmh.annotations.BenchmarkMode;\n" +
+          "import org.openjdk.jmh.annotations.Level;\n" +
+          "import org.openjdk.jmh.annotations.Mode;\n" +
+          "import org.openjdk.jmh.annotations.OutputTimeUnit;\n" +
+          "import org.openjdk.jmh.annotations.Param;\n" +
+          "import org.openjdk.jmh.annotations.Scope;\n" +
+          "import org.openjdk.jmh.annotations.Setup;\n" +
+          "import org.openjdk.jmh.annotations.State;\n" +
+          "\n" +
+          "import java.nio.charset.StandardCharsets;\n" +
+          "import java.nio.file.Files;\n" +
+          "import java.nio.file.Path;\n" +
+          "import java.nio.file.Paths;\n" +
+          "import java.util.ArrayDeque;\n" +
+          "import java.util.Deque;\n" +
+          "import java.util.List;\n" +
+          "import java.util.concurrent.TimeUnit;\n" +
+          "import java.util.stream.Collectors;\n" +
+          "import java.util.stream.Stream;\n" +
+          "\n" +
+          "/**\n" +
+          " * Measures the throughput of {@link " + parserClass + "}, generated from " + fileName + ".\n" +
+          " * Every operation parses one file of the corpus. Use {@code -prof gc} for the\n" +
+          " * bytes allocated per parse ({@code gc.alloc.rate.norm}). A relative corpus is\n" +
+          " * resolved against the working directory, use {@code -p corpus=<dir>} to replace it.\n" +
+          " */\n" +
+          "@State(Scope.Benchmark)\n" +
+          "@BenchmarkMode(Mode.Throughput)\n" +
+          "@OutputTimeUnit(TimeUnit.SECONDS)\n" +
+          "public class " + simpleName + " {\n" +
+          "  @Param(" + literal(corpus.toString()) + ")\n" +
+          "  public String corpus;\n" +
+          "\n" +
+          "  @Param(" + literal(parserDefinition) + ")\n" +
+          "  public String parserDefinition;\n" +
+          "\n" +
+          "  private ParserDefinition definition;\n" +
+          "  private String[] names;\n" +
+          "  private String[] texts;\n" +
+          "\n" +
+          "  @Setup\n" +
+          "  public void setUp() throws Exception {\n" +
+          "    if (parserDefinition.isEmpty()) {\n" +
+          "      throw new IllegalStateException(\n" +
+          "          \"No ParserDefinition found for " + parserClass + ", use -p parserDefinition=<class>\");\n" +
+          "    }\n" +
+          "    // Initialize the parser and its element types outside of the measurement.\n" +
+          "    Class.forName(" + literal(elementTypeHolderClass) + ");\n" +
+          "    Class.forName(" + literal(parserClass) + ");\n" +
+          "    definition = (ParserDefinition) Class.forName(parserDefinition).getConstructor().newInstance();\n" +
+          "\n" +
+          "    List<Path> files;\n" +
+          "    try (Stream<Path> stream = Files.walk(Paths.get(corpus))) {\n" +
+          "      files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());\n" +
+          "    }\n" +
+          "    if (files.isEmpty()) {\n" +
+          "      throw new IllegalStateException(\"No files in corpus: \" + corpus);\n" +
+          "    }\n" +
+          "    names = new String[files.size()];\n" +
+          "    texts = new String[files.size()];\n" +
+          "    for (int i = 0; i < files.size(); ++i) {\n" +
+          "      names[i] = files.get(i).getFileName().toString();\n" +
+          "      texts[i] = new String(Files.readAllBytes(files.get(i)), StandardCharsets.UTF_8);\n" +
+          "    }\n" +
+          "  }\n" +
+          "\n" +
+          "  @State(Scope.Thread)\n" +
+          "  @AuxCounters(AuxCounters.Type.OPERATIONS)\n" +
+          "  public static class Counters {\n" +
+          "    public long nodes;\n" +
+          "    private int next;\n" +
+          "\n" +
+          "    @Setup(Level.Iteration)\n" +
+          "    public void reset() {\n" +
+          "      nodes = 0;\n" +
+          "    }\n" +
+          "  }\n" +
+          "\n" +
+          "  @Benchmark\n" +
+          "  public PsiFile parse(Counters counters) {\n" +
+          "    int index = counters.next;\n" +
+          "    counters.next = (index + 1) % texts.length;\n" +
+          "    PsiFile file = LightPsi.parseFile(names[index], texts[index], definition);\n" +
+          "    counters.nodes += countNodes(file.getNode());\n" +
+          "    return file;\n" +
+          "  }\n" +
+          "\n" +
+          "  private static long countNodes(ASTNode root) {\n" +
+          "    long count = 0;\n" +
+          "    Deque<ASTNode> stack = new ArrayDeque<>();\n" +
+          "    stack.push(root);\n" +
+          "    while (!stack.isEmpty()) {\n" +
+          "      ASTNode node = stack.pop();\n" +
+          "      ++count;\n" +
+          "      for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {\n" +
+          "        stack.push(child);\n" +
+          "      }\n" +
+          "    }\n" +
+          "    return count;\n" +
+          "  }\n" +
+          "}\n");
+    }
+  }
+
+  private synchronized @NotNull String findParserDefinition(@NotNull String parserClass) {
+    if (parserDefinitions.size() == 1) {
+      return parserDefinitions.get(0);
+    }
+    // Prefer the definition which shares the most packages with the parser.
+    String parserPackage = packageOf(parserClass);
+    String result = "";
+    int bestScore = 0;
+    for (String className : parserDefinitions) {
+      int score = commonPackages(parserPackage, packageOf(className));
+      if (score > bestScore) {
+        bestScore = score;
+        result = className;
+      }
+      else if (score == bestScore) {
+        result = "";
+      }
+    }
+    return result;
+  }
+
+  private static int commonPackages(@NotNull String a, @NotNull String b) {
+    String[] left = a.split("\\.");
+    String[] right = b.split("\\.");
+    int count = 0;
+    while (count < left.length && count < right.length && !left[count].isEmpty() && left[count].equals(right[count])) {
+      ++count;
+    }
+    return count;
+  }
+
+  private static @NotNull String packageOf(@NotNull String className) {
+    int index = className.lastIndexOf('.');
+    return index < 0 ? "" : className.substring(0, index);
+  }
+
+  private static @NotNull String literal(@NotNull String value) {
+    return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+}
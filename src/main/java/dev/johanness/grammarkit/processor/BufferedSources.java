@@ -0,0 +1,59 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SourceSink} which keeps the sources in memory. Used for generation
+ * on worker threads, as the {@link javax.annotation.processing.Filer} must
+ * only be used by the thread of the compiler.
+ */
+final class BufferedSources implements SourceSink {
+  private final Map<String, StringWriter> sources = new LinkedHashMap<>();
+  private final Map<String, List<String>> originatingClasses = new LinkedHashMap<>();
+
+  @Override
+  public synchronized @NotNull Writer openSource(
+      @NotNull String className,
+      @NotNull Collection<String> originatingClasses)
+  {
+    StringWriter writer = new StringWriter();
+    sources.put(className, writer);
+    this.originatingClasses.put(className, List.copyOf(originatingClasses));
+    return writer;
+  }
+
+  synchronized @NotNull Map<String, String> getSources() {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (Map.Entry<String, StringWriter> entry : sources.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().toString());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the originating classes of all sources.
+   */
+  synchronized @NotNull Set<String> getOriginatingClasses() {
+    Set<String> result = new LinkedHashSet<>();
+    originatingClasses.values().forEach(result::addAll);
+    return result;
+  }
+
+  synchronized void writeTo(@NotNull SourceSink sink) throws IOException {
+    for (Map.Entry<String, StringWriter> entry : sources.entrySet()) {
+      try (Writer writer = sink.openSource(entry.getKey(), originatingClasses.get(entry.getKey()))) {
+        writer.write(entry.getValue().toString());
+      }
+    }
+  }
+}
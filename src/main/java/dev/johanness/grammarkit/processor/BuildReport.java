@@ -0,0 +1,231 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects timings and statistics of a compilation. The timings are also
+ * emitted as {@link PhaseEvent JFR events}. The report can be written as
+ * JSON for build dashboards.
+ */
+final class BuildReport {
+  private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+  private final Map<Path, Grammar> grammars = new LinkedHashMap<>();
+  private Map<String, Long> javaHelperCalls = Map.of();
+  private long cacheHits;
+  private long cacheMisses;
+
+  /**
+   * Starts a phase which is not specific to a grammar.
+   */
+  @NotNull Phase phase(@NotNull String name) {
+    return new Phase(name, null);
+  }
+
+  synchronized @NotNull Grammar grammar(@NotNull Path source) {
+    return grammars.computeIfAbsent(source, Grammar::new);
+  }
+
+  synchronized void setJavaHelperStatistics(@NotNull Map<String, Long> calls, long cacheHits, long cacheMisses) {
+    this.javaHelperCalls = Map.copyOf(calls);
+    this.cacheHits = cacheHits;
+    this.cacheMisses = cacheMisses;
+  }
+
+  synchronized void write(@NotNull Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writer.write(toJson());
+    }
+  }
+
+  synchronized @NotNull String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"phaseNanos\": ");
+    appendMap(json, phaseNanos);
+    json.append(",\n  \"grammars\": [");
+    boolean first = true;
+    for (Grammar grammar : grammars.values()) {
+      json.append(first ? "\n" : ",\n");
+      first = false;
+      json.append("    {\"grammar\": ");
+      appendString(json, grammar.source.toString());
+      json.append(", \"phaseNanos\": ");
+      appendMap(json, grammar.phaseNanos);
+      json.append(", \"files\": ").append(grammar.files);
+      json.append(", \"bytes\": ").append(grammar.bytes);
+      json.append('}');
+    }
+    json.append(first ? "],\n" : "\n  ],\n");
+    json.append("  \"javaHelper\": {\"calls\": ");
+    appendMap(json, javaHelperCalls);
+    json.append(", \"cacheHits\": ").append(cacheHits);
+    json.append(", \"cacheMisses\": ").append(cacheMisses);
+    json.append("}\n}\n");
+    return json.toString();
+  }
+
+  private synchronized void record(@NotNull String phase, @Nullable Grammar grammar, long nanos) {
+    phaseNanos.merge(phase, nanos, Long::sum);
+    if (grammar != null) {
+      grammar.phaseNanos.merge(phase, nanos, Long::sum);
+    }
+  }
+
+  private static void appendMap(@NotNull StringBuilder json, @NotNull Map<String, Long> map) {
+    json.append('{');
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : map.entrySet()) {
+      if (!first) {
+        json.append(", ");
+      }
+      first = false;
+      appendString(json, entry.getKey());
+      json.append(": ").append(entry.getValue());
+    }
+    json.append('}');
+  }
+
+  private static void appendString(@NotNull StringBuilder json, @NotNull String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      }
+      else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      }
+      else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+
+  final class Grammar {
+    private final @NotNull Path source;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private int files;
+    private long bytes;
+
+    private Grammar(@NotNull Path source) {
+      this.source = source;
+    }
+
+    @NotNull Phase phase(@NotNull String name) {
+      return new Phase(name, this);
+    }
+
+    /**
+     * Returns a sink which counts the files and bytes written into the
+     * given sink.
+     */
+    @NotNull SourceSink count(@NotNull SourceSink sink) {
+      return (className, originatingClasses) -> {
+        synchronized (BuildReport.this) {
+          files += 1;
+        }
+        return new Utf8CountingWriter(sink.openSource(className, originatingClasses)) {
+          @Override
+          protected void count(long bytes) {
+            synchronized (BuildReport.this) {
+              Grammar.this.bytes += bytes;
+            }
+          }
+        };
+      };
+    }
+  }
+
+  final class Phase implements AutoCloseable {
+    private final @NotNull String name;
+    private final @Nullable Grammar grammar;
+    private final @NotNull PhaseEvent event = new PhaseEvent();
+    private final long start;
+
+    private Phase(@NotNull String name, @Nullable Grammar grammar) {
+      this.name = name;
+      this.grammar = grammar;
+      this.event.begin();
+      this.start = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+      record(name, grammar, System.nanoTime() - start);
+      if (event.shouldCommit()) {
+        event.phase = name;
+        event.grammar = grammar == null ? null : grammar.source.toString();
+        event.commit();
+      }
+    }
+  }
+
+  private abstract static class Utf8CountingWriter extends Writer {
+    private final @NotNull Writer delegate;
+    private long pending;
+
+    Utf8CountingWriter(@NotNull Writer delegate) {
+      this.delegate = delegate;
+    }
+
+    protected abstract void count(long bytes);
+
+    @Override
+    public void write(char @NotNull [] buffer, int offset, int length) throws IOException {
+      delegate.write(buffer, offset, length);
+      for (int i = offset; i < offset + length; ++i) {
+        countChar(buffer[i]);
+      }
+    }
+
+    @Override
+    public void write(@NotNull String str, int offset, int length) throws IOException {
+      delegate.write(str, offset, length);
+      for (int i = offset; i < offset + length; ++i) {
+        countChar(str.charAt(i));
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+      count(pending);
+      pending = 0;
+    }
+
+    private void countChar(char c) {
+      if (c < 0x80) {
+        pending += 1;
+      }
+      else if (c < 0x800) {
+        pending += 2;
+      }
+      else if (Character.isSurrogate(c)) {
+        // Surrogate pairs take 4 bytes in total
+        pending += 2;
+      }
+      else {
+        pending += 3;
+      }
+    }
+  }
+}
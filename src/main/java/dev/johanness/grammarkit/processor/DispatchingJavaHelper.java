@@ -0,0 +1,128 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.navigation.NavigationItem;
+import com.intellij.psi.NavigatablePsiElement;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiReference;
+import com.intellij.util.ProcessingContext;
+import org.intellij.grammar.java.JavaHelper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * {@link JavaHelper} which forwards all calls to the helper bound to the
+ * current thread. It is registered once for the process-wide project of
+ * Grammar-Kit, so that multiple compilations within the same JVM can
+ * generate grammars at the same time, each with its own helper.
+ */
+final class DispatchingJavaHelper extends JavaHelper {
+  private final @Nullable JavaHelper defaultHelper;
+  private final ThreadLocal<JavaHelper> boundHelper = new ThreadLocal<>();
+
+  /**
+   * @param defaultHelper helper for threads without a bound helper
+   */
+  DispatchingJavaHelper(@Nullable JavaHelper defaultHelper) {
+    this.defaultHelper = defaultHelper;
+  }
+
+  /**
+   * Binds the given helper to the current thread until the returned scope
+   * is closed.
+   */
+  @NotNull Scope bind(@NotNull JavaHelper helper) {
+    JavaHelper previous = boundHelper.get();
+    boundHelper.set(helper);
+    return () -> {
+      if (previous == null) {
+        boundHelper.remove();
+      }
+      else {
+        boundHelper.set(previous);
+      }
+    };
+  }
+
+  private @NotNull JavaHelper current() {
+    JavaHelper helper = boundHelper.get();
+    if (helper != null) {
+      return helper;
+    }
+    else if (defaultHelper != null) {
+      return defaultHelper;
+    }
+    else {
+      throw new IllegalStateException("No JavaHelper bound to " + Thread.currentThread().getName());
+    }
+  }
+
+  @Override
+  public boolean isPublic(@Nullable NavigatablePsiElement element) {
+    return current().isPublic(element);
+  }
+
+  @Override
+  public @Nullable NavigatablePsiElement findClass(@Nullable String className) {
+    return current().findClass(className);
+  }
+
+  @Override
+  public @Nullable NavigationItem findPackage(@Nullable String packageName) {
+    return current().findPackage(packageName);
+  }
+
+  @Override
+  public @NotNull List<NavigatablePsiElement> findClassMethods(
+      @Nullable String className,
+      @NotNull MethodType methodType, @Nullable String methodName,
+      int paramCount, String... paramTypes) {
+    return current().findClassMethods(className, methodType, methodName, paramCount, paramTypes);
+  }
+
+  @Override
+  public @Nullable String getSuperClassName(@Nullable String className) {
+    return current().getSuperClassName(className);
+  }
+
+  @Override
+  public @NotNull List<String> getMethodTypes(@Nullable NavigatablePsiElement method) {
+    return current().getMethodTypes(method);
+  }
+
+  @Override
+  public List<TypeParameterInfo> getGenericParameters(NavigatablePsiElement method) {
+    return current().getGenericParameters(method);
+  }
+
+  @Override
+  public List<String> getExceptionList(NavigatablePsiElement method) {
+    return current().getExceptionList(method);
+  }
+
+  @Override
+  public @NotNull String getDeclaringClass(@Nullable NavigatablePsiElement method) {
+    return current().getDeclaringClass(method);
+  }
+
+  @Override
+  public @NotNull List<String> getAnnotations(@Nullable NavigatablePsiElement element) {
+    return current().getAnnotations(element);
+  }
+
+  @Override
+  public @NotNull List<String> getParameterAnnotations(@Nullable NavigatablePsiElement method, int paramIndex) {
+    return current().getParameterAnnotations(method, paramIndex);
+  }
+
+  @Override
+  public @NotNull PsiReference[] getClassReferences(@NotNull PsiElement element, @NotNull ProcessingContext context) {
+    return current().getClassReferences(element, context);
+  }
+
+  interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,105 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.psi.BnfFile;
+import org.intellij.grammar.psi.BnfRule;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Qualified names of the classes which are generated for a BNF file. The
+ * names are derived from the attributes of the file and the names of its
+ * rules, before the generator runs. The index may contain classes which
+ * are not actually generated, like classes of private rules.
+ */
+final class GeneratedClassIndex {
+  private final @NotNull Set<String> classNames;
+  private final @NotNull Map<String, String> rules;
+
+  private GeneratedClassIndex(@NotNull Set<String> classNames, @NotNull Map<String, String> rules) {
+    this.classNames = classNames;
+    this.rules = rules;
+  }
+
+  static @NotNull GeneratedClassIndex of(@NotNull BnfFile bnfFile) {
+    Set<String> classNames = new HashSet<>();
+    Map<String, String> rules = new HashMap<>();
+    add(classNames, bnfFile.findAttributeValue(null, KnownAttribute.PARSER_CLASS, null));
+    add(classNames, bnfFile.findAttributeValue(null, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS, null));
+
+    String prefix = valueOf(bnfFile, KnownAttribute.PSI_CLASS_PREFIX);
+    String implSuffix = valueOf(bnfFile, KnownAttribute.PSI_IMPL_CLASS_SUFFIX);
+    String psiPackage = valueOf(bnfFile, KnownAttribute.PSI_PACKAGE);
+    String psiImplPackage = valueOf(bnfFile, KnownAttribute.PSI_IMPL_PACKAGE);
+    add(classNames, qualify(psiPackage, prefix + valueOf(bnfFile, KnownAttribute.PSI_VISITOR_NAME)));
+    for (BnfRule rule : bnfFile.getRules()) {
+      String name = prefix + toIdentifier(rule.getName());
+      String psiClass = qualify(psiPackage, name);
+      String psiImplClass = qualify(psiImplPackage, name + implSuffix);
+      add(classNames, psiClass);
+      add(classNames, psiImplClass);
+      rules.putIfAbsent(psiClass, rule.getName());
+      rules.putIfAbsent(psiImplClass, rule.getName());
+    }
+    return new GeneratedClassIndex(Set.copyOf(classNames), Map.copyOf(rules));
+  }
+
+  /**
+   * Returns the name of the rule the given class is generated for, or
+   * {@code null} if the class does not belong to a single rule.
+   */
+  @Nullable String getRule(@NotNull String className) {
+    return rules.get(className);
+  }
+
+  /**
+   * Returns the candidate which is generated, if exactly one of the given
+   * candidates is generated. Otherwise, the candidates are returned
+   * unchanged, as the index cannot decide between them.
+   */
+  @NotNull Collection<String> narrow(@NotNull Collection<String> candidates) {
+    String result = null;
+    for (String candidate : candidates) {
+      if (classNames.contains(candidate)) {
+        if (result != null) {
+          return candidates;
+        }
+        result = candidate;
+      }
+    }
+    return result == null ? candidates : List.of(result);
+  }
+
+  private static void add(@NotNull Set<String> classNames, @Nullable String className) {
+    if (className != null && !className.isEmpty()) {
+      classNames.add(className);
+    }
+  }
+
+  private static @NotNull String valueOf(@NotNull BnfFile bnfFile, @NotNull KnownAttribute<String> attribute) {
+    String value = bnfFile.findAttributeValue(null, attribute, null);
+    return value == null ? "" : value;
+  }
+
+  private static @NotNull String qualify(@NotNull String packageName, @NotNull String simpleName) {
+    return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+  }
+
+  // Simplified version of ParserGeneratorUtil.toIdentifier(..., Case.CAMEL)
+  private static @NotNull String toIdentifier(@NotNull String ruleName) {
+    StringBuilder builder = new StringBuilder(ruleName.length());
+    for (String part : ruleName.split("[^\\p{Alnum}]+")) {
+      if (!part.isEmpty()) {
+        builder.append(Character.toUpperCase(part.charAt(0))).append(part, 1, part.length());
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,273 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.psi.PsiFile;
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.psi.BnfFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.TypeElement;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Generates the sources of grammars with Grammar-Kit. This class is the
+ * entry point to all classes of IntelliJ and Grammar-Kit. It must only be
+ * loaded if there is actually something to generate.
+ */
+final class GrammarGenerator {
+  private final @NotNull GrammarKitEnvironment environment;
+  private final @Nullable Path stateDirectory;
+  private final @NotNull BuildReport report;
+  private final @NotNull MyJavaHelper javaHelper;
+  private final @Nullable BenchmarkGenerator benchmarkGenerator;
+  private final @Nullable RuleProfiler profiler;
+  // Hashes of grammars taken before their generation, only used by the
+  // thread of javac.
+  private final Map<Path, IncrementalState> states = new HashMap<>();
+
+  GrammarGenerator(
+      @NotNull ProcessingEnvironment processingEnv,
+      @Nullable Path stateDirectory,
+      @Nullable Path benchmarkCorpus,
+      @Nullable RuleProfiler profiler,
+      @NotNull BuildReport report)
+  {
+    this.environment = GrammarKitEnvironment.getInstance();
+    this.stateDirectory = stateDirectory;
+    this.report = report;
+    this.javaHelper = new MyJavaHelper(processingEnv);
+    this.benchmarkGenerator = benchmarkCorpus == null ? null : new BenchmarkGenerator(benchmarkCorpus);
+    this.profiler = profiler;
+  }
+
+  void startRound() {
+    javaHelper.startRound();
+  }
+
+  /**
+   * Adds implementations of {@code ParserDefinition} which may be used by
+   * generated benchmarks.
+   */
+  void addParserDefinitions(@NotNull List<String> classNames) {
+    if (benchmarkGenerator != null) {
+      benchmarkGenerator.addParserDefinitions(classNames);
+    }
+  }
+
+  /**
+   * Takes snapshots of the given classes, so that queries of Grammar-Kit
+   * about them do not access javac. Must be called by the thread of javac.
+   */
+  void snapshot(@NotNull Collection<String> classNames) {
+    javaHelper.snapshot(classNames);
+  }
+
+  /**
+   * Returns the thread of javac, which runs the queries of workers about
+   * classes which are not covered by a snapshot.
+   */
+  @NotNull ProcessingThread getProcessingThread() {
+    return javaHelper.getProcessingThread();
+  }
+
+  /**
+   * Returns the type element for the given class name. Must be used
+   * instead of {@link javax.lang.model.util.Elements} while grammars may be
+   * generated on other threads.
+   */
+  @Nullable TypeElement getTypeElement(@NotNull String className) {
+    return javaHelper.getTypeElement(className);
+  }
+
+  /**
+   * Releases the PSI of this compilation. The generator must not be used
+   * afterwards.
+   */
+  void dispose() {
+    environment.dropPsiCaches();
+  }
+
+  void reportStatistics() {
+    report.setJavaHelperStatistics(
+        javaHelper.getCallCounts(),
+        javaHelper.getCache().getHits(),
+        javaHelper.getCache().getMisses());
+  }
+
+  /**
+   * Generates the parser for the given BNF file into the given sink. Runs
+   * the same phases as the generation on worker threads, so that the
+   * report does not depend on the number of threads.
+   *
+   * @return {@code false} if the file is not a valid BNF file
+   */
+  boolean generate(@NotNull Path source, @NotNull SourceSink sink) throws IOException {
+    BufferedSources sources = loadIfUpToDate(source);
+    if (sources == null) {
+      Set<String> queriedClasses = new TreeSet<>();
+      sources = generateBuffered(source, queriedClasses);
+      if (sources == null) {
+        return false;
+      }
+      saveState(source, sources, queriedClasses);
+    }
+    try (BuildReport.Phase ignored = report.grammar(source).phase("write")) {
+      sources.writeTo(sink);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the sources of the previous generation of the given BNF file,
+   * if they are still up to date. Must be called by the thread of javac,
+   * as the classes queried by the previous generation are checked.
+   *
+   * @return the sources, or {@code null} if the grammar must be generated
+   */
+  @Nullable BufferedSources loadIfUpToDate(@NotNull Path source) throws IOException {
+    // Replayed grammars would be missing in the profile.
+    if (stateDirectory == null || profiler != null) {
+      return null;
+    }
+    try (BuildReport.Phase ignored = report.grammar(source).phase("state.load")) {
+      IncrementalState state = new IncrementalState(stateDirectory, source, describeSettings());
+      states.put(source, state);
+      return state.loadIfUpToDate(javaHelper::describeClass);
+    }
+  }
+
+  /**
+   * Generates the parser for the given BNF file into memory. May be called
+   * from any thread.
+   *
+   * @param queriedClasses receives the names of all classes queried by
+   *                       Grammar-Kit, see {@link #saveState}
+   * @return the generated sources, or {@code null} if the file is not a
+   *         valid BNF file
+   */
+  @Nullable BufferedSources generateBuffered(
+      @NotNull Path source,
+      @NotNull Set<String> queriedClasses) throws IOException
+  {
+    BufferedSources sources = new BufferedSources();
+    javaHelper.startRecording(queriedClasses);
+    try {
+      return generateParser(source, sources) ? sources : null;
+    }
+    finally {
+      javaHelper.stopRecording();
+    }
+  }
+
+  /**
+   * Stores the sources generated by {@link #generateBuffered}, so that they
+   * can be reused by later compilations. Must be called by the thread of
+   * javac after {@link #loadIfUpToDate}, as the queried classes are
+   * described.
+   */
+  void saveState(
+      @NotNull Path source,
+      @NotNull BufferedSources sources,
+      @NotNull Set<String> queriedClasses) throws IOException
+  {
+    if (stateDirectory == null) {
+      return;
+    }
+    try (BuildReport.Phase ignored = report.grammar(source).phase("state.save")) {
+      Map<String, String> classDescriptions = new LinkedHashMap<>();
+      for (String className : queriedClasses) {
+        classDescriptions.put(className, javaHelper.describeClass(className));
+      }
+      IncrementalState state = states.remove(source);
+      if (state == null) {
+        state = new IncrementalState(stateDirectory, source, describeSettings());
+      }
+      state.save(sources, classDescriptions);
+    }
+  }
+
+  private @NotNull String describeSettings() {
+    // Benchmarks are generated into the same sources as the parser.
+    return benchmarkGenerator == null ? "" : "benchmarks: " + benchmarkGenerator.describeSettings();
+  }
+
+  private static @NotNull List<String> getOriginatingClasses(@NotNull BnfFile bnfFile) {
+    // The BNF file itself is not an element. The psiImplUtilClass is the
+    // only class of the compilation which the generated sources depend on.
+    String psiImplUtilClass = bnfFile.findAttributeValue(null, KnownAttribute.PSI_IMPL_UTIL_CLASS, null);
+    return psiImplUtilClass == null ? List.of() : List.of(psiImplUtilClass);
+  }
+
+  private static @NotNull SourceSink profiled(
+      @NotNull SourceSink sink,
+      @NotNull GeneratedClassIndex generatedClasses,
+      @NotNull RuleProfiler.Recorder recorder)
+  {
+    return (className, originatingClasses) -> {
+      String rule = generatedClasses.getRule(className);
+      recorder.startRule(rule != null ? rule : className.substring(className.lastIndexOf('.') + 1));
+      return sink.openSource(className, originatingClasses);
+    };
+  }
+
+  private boolean generateParser(@NotNull Path source, @NotNull SourceSink sink) throws IOException {
+    BuildReport.Grammar grammarReport = report.grammar(source);
+    PsiFile bnfFile;
+    try (BuildReport.Phase ignored = grammarReport.phase("parse")) {
+      bnfFile = environment.parse(source);
+    }
+    if (bnfFile == null) {
+      return false;
+    }
+    try {
+      if (bnfFile instanceof BnfFile) {
+        GeneratedClassIndex generatedClasses = GeneratedClassIndex.of((BnfFile) bnfFile);
+        javaHelper.setGeneratedClasses(generatedClasses);
+        List<String> originatingClasses = getOriginatingClasses((BnfFile) bnfFile);
+        RuleProfiler.Recorder recorder = profiler == null
+            ? null
+            : profiler.start(source.getFileName().toString(), javaHelper::getCallCountOfCurrentThread);
+        try (DispatchingJavaHelper.Scope ignored = environment.bindJavaHelper(javaHelper);
+             BuildReport.Phase phase = grammarReport.phase("generate")) {
+          new SinkParserGenerator(
+              (BnfFile) bnfFile,
+              source.getParent().toAbsolutePath().toString(),
+              recorder == null ? sink : profiled(sink, generatedClasses, recorder),
+              originatingClasses
+          ).generate();
+        }
+        finally {
+          if (recorder != null) {
+            recorder.finish();
+          }
+        }
+        if (benchmarkGenerator != null) {
+          try (BuildReport.Phase ignored = grammarReport.phase("benchmark")) {
+            benchmarkGenerator.generate(
+                (BnfFile) bnfFile,
+                source.getFileName().toString(),
+                sink,
+                originatingClasses);
+          }
+        }
+        return true;
+      }
+      else {
+        return false;
+      }
+    }
+    finally {
+      javaHelper.setGeneratedClasses(null);
+      environment.releasePsi(bnfFile);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.core.CoreProjectEnvironment;
+import com.intellij.lang.LanguageASTFactory;
+import com.intellij.lang.LanguageBraceMatching;
+import com.intellij.mock.MockProject;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.impl.PsiManagerEx;
+import org.intellij.grammar.BnfASTFactory;
+import org.intellij.grammar.BnfBraceMatcher;
+import org.intellij.grammar.BnfLanguage;
+import org.intellij.grammar.BnfParserDefinition;
+import org.intellij.grammar.LightPsi;
+import org.intellij.grammar.java.JavaHelper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+
+/**
+ * Process-wide environment of Grammar-Kit. The environment is initialized
+ * once and reused by all compilations within the same JVM, for example
+ * within the Gradle daemon. Compilations may use it at the same time, as
+ * the {@link JavaHelper} is bound to the generating thread instead of
+ * being registered for each compilation, and as the methods which modify
+ * the shared project are synchronized.
+ */
+final class GrammarKitEnvironment {
+  private static @Nullable GrammarKitEnvironment instance;
+
+  private final @NotNull CoreProjectEnvironment projectEnvironment;
+  private final @NotNull BnfParserDefinition parserDefinition;
+  private final @NotNull DispatchingJavaHelper javaHelper;
+
+  private GrammarKitEnvironment() {
+    LightPsi.init();
+    LightPsi.Init.addKeyedExtension(LanguageASTFactory.INSTANCE, BnfLanguage.INSTANCE, new BnfASTFactory(), null);
+    LightPsi.Init.addKeyedExtension(LanguageBraceMatching.INSTANCE, BnfLanguage.INSTANCE, new BnfBraceMatcher(), null);
+
+    Object parsing = getField(LightPsi.class, null, "ourParsing");
+    projectEnvironment = getField(parsing.getClass(), parsing, "proj");
+    parserDefinition = new BnfParserDefinition();
+    MockProject project = projectEnvironment.getProject();
+    javaHelper = new DispatchingJavaHelper(project.getService(JavaHelper.class));
+    project.getPicoContainer().unregisterComponent(JavaHelper.class.getName());
+    project.registerService(JavaHelper.class, javaHelper);
+  }
+
+  static synchronized @NotNull GrammarKitEnvironment getInstance() {
+    if (instance == null) {
+      instance = new GrammarKitEnvironment();
+    }
+    return instance;
+  }
+
+  @NotNull BnfParserDefinition getParserDefinition() {
+    return parserDefinition;
+  }
+
+  /**
+   * Parses the given BNF file. LightPsi creates the file in the shared
+   * project and registers the parser definition for every file, so
+   * compilations and worker threads must not parse at the same time. The
+   * tree is built eagerly, while the lock is held.
+   */
+  synchronized @Nullable PsiFile parse(@NotNull Path source) throws IOException {
+    PsiFile file = LightPsi.parseFile(source.toFile(), parserDefinition);
+    if (file != null) {
+      file.getNode().getFirstChildNode();
+    }
+    return file;
+  }
+
+  /**
+   * Makes Grammar-Kit use the given helper on the current thread until the
+   * returned scope is closed. The helper is never registered globally, so
+   * it cannot leak into other compilations and is not retained afterwards.
+   */
+  @NotNull DispatchingJavaHelper.Scope bindJavaHelper(@NotNull JavaHelper helper) {
+    return javaHelper.bind(helper);
+  }
+
+  /**
+   * Detaches the given file from the project, so that it can be garbage
+   * collected together with its PSI tree. Synchronized like
+   * {@link #dropPsiCaches()}, as the FileManager of the shared project is
+   * not thread-safe.
+   */
+  synchronized void releasePsi(@NotNull PsiFile file) {
+    PsiManagerEx.getInstanceEx(projectEnvironment.getProject()).getFileManager()
+        .setViewProvider(file.getViewProvider().getVirtualFile(), null);
+  }
+
+  /**
+   * Drops the caches of the project which may still reference PSI of
+   * released files.
+   */
+  synchronized void dropPsiCaches() {
+    PsiManager.getInstance(projectEnvironment.getProject()).dropPsiCaches();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T getField(Class<?> clazz, Object instance, String name) {
+    try {
+      Field field = clazz.getDeclaredField(name);
+      field.trySetAccessible();
+      return (T) field.get(instance);
+    }
+    catch (IllegalAccessException | NoSuchFieldException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
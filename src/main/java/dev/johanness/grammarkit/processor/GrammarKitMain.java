@@ -0,0 +1,134 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates lexers and parsers without compiling anything. The grammars
+ * are generated by {@link GrammarKitProcessor} within a javac task which
+ * only runs annotation processing, so that the {@code psiImplUtilClass}
+ * can be resolved from the given class path.
+ *
+ * <pre>
+ * GrammarKitMain [--classpath &lt;path&gt;] [--threads &lt;n&gt;] [--state-dir &lt;dir&gt;]
+ *                --output &lt;dir&gt; &lt;files&gt;...
+ * </pre>
+ *
+ * Files ending with {@code .flex} are generated with JFlex, all other files
+ * with Grammar-Kit.
+ */
+public final class GrammarKitMain {
+  private static final String USAGE = "Usage: GrammarKitMain [--classpath <path>] [--threads <n>] " +
+                                      "[--state-dir <dir>] --output <dir> <files>...";
+
+  private GrammarKitMain() {}
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.err));
+  }
+
+  /**
+   * Runs the generation with the given arguments.
+   *
+   * @return {@code 0} on success, {@code 1} if the generation failed, or
+   *         {@code 2} if the arguments are invalid
+   */
+  static int run(String @NotNull [] args, @NotNull PrintStream err) {
+    String classPath = null;
+    String threads = "0";
+    String stateDirectory = null;
+    Path outputDirectory = null;
+    List<String> lexers = new ArrayList<>();
+    List<String> parsers = new ArrayList<>();
+
+    for (int i = 0; i < args.length; ++i) {
+      String arg = args[i];
+      if (arg.startsWith("--") && i + 1 >= args.length) {
+        err.println("Missing value for " + arg);
+        err.println(USAGE);
+        return 2;
+      }
+      switch (arg) {
+        case "--classpath":
+          classPath = args[++i];
+          break;
+        case "--threads":
+          threads = args[++i];
+          break;
+        case "--state-dir":
+          stateDirectory = args[++i];
+          break;
+        case "--output":
+          outputDirectory = Path.of(args[++i]);
+          break;
+        default:
+          if (arg.startsWith("--")) {
+            err.println("Unknown option: " + arg);
+            err.println(USAGE);
+            return 2;
+          }
+          (arg.endsWith(".flex") ? lexers : parsers).add(arg);
+          break;
+      }
+    }
+    if (outputDirectory == null || (lexers.isEmpty() && parsers.isEmpty())) {
+      err.println(USAGE);
+      return 2;
+    }
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      err.println("No Java compiler available, a JDK is required");
+      return 1;
+    }
+    try {
+      Files.createDirectories(outputDirectory);
+    }
+    catch (IOException e) {
+      err.println("Cannot create output directory: " + e);
+      return 1;
+    }
+
+    List<String> options = new ArrayList<>(Arrays.asList(
+        "-proc:only",
+        "-implicit:none",
+        "-s", outputDirectory.toString(),
+        "-A" + GrammarKitProcessor.THREADS_OPTION + "=" + threads));
+    addOption(options, "-classpath", classPath);
+    addOption(options, "-A" + GrammarKitProcessor.STATE_DIR_OPTION + "=", stateDirectory);
+    addOption(options, "-A" + GrammarKitProcessor.LEXER_OPTION + "=", String.join(File.pathSeparator, lexers));
+    addOption(options, "-A" + GrammarKitProcessor.PARSER_OPTION + "=", String.join(File.pathSeparator, parsers));
+
+    // javac requires something to process. The grammars given by options
+    // are generated in the first round, regardless of the classes.
+    JavaCompiler.CompilationTask task = compiler.getTask(
+        new PrintWriter(err, true), null, null, options, List.of("java.lang.Object"), null);
+    task.setProcessors(List.of(new GrammarKitProcessor()));
+    return task.call() ? 0 : 1;
+  }
+
+  private static void addOption(@NotNull List<String> options, @NotNull String option, @Nullable String value) {
+    if (value == null || value.isEmpty()) {
+      return;
+    }
+    if (option.endsWith("=")) {
+      options.add(option + value);
+    }
+    else {
+      options.add(option);
+      options.add(value);
+    }
+  }
+}
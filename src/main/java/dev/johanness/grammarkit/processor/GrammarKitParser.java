@@ -0,0 +1,26 @@
+package dev.johanness.grammarkit.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares BNF files for which Grammar-Kit shall generate parsers. The
+ * annotation can be placed on a package, usually in
+ * {@code package-info.java}, or on a type like the {@code psiImplUtilClass}.
+ * The annotated element becomes the originating element of the generated
+ * sources.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.PACKAGE, ElementType.TYPE})
+public @interface GrammarKitParser {
+  /**
+   * Paths of the BNF files. Relative paths are resolved against the
+   * directory of the source file of the annotated element, or otherwise
+   * against the source path of the package.
+   */
+  String[] value();
+}
@@ -1,17 +1,9 @@
 package dev.johanness.grammarkit.processor;
 
-import com.intellij.core.CoreProjectEnvironment;
-import com.intellij.lang.LanguageASTFactory;
-import com.intellij.lang.LanguageBraceMatching;
-import com.intellij.psi.PsiFile;
-import org.intellij.grammar.BnfASTFactory;
-import org.intellij.grammar.BnfBraceMatcher;
-import org.intellij.grammar.BnfLanguage;
-import org.intellij.grammar.BnfParserDefinition;
-import org.intellij.grammar.LightPsi;
-import org.intellij.grammar.generator.ParserGenerator;
-import org.intellij.grammar.java.JavaHelper;
-import org.intellij.grammar.psi.BnfFile;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -20,94 +12,460 @@
 import javax.annotation.processing.SupportedOptions;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Field;
-import java.nio.file.FileVisitResult;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-@SupportedAnnotationTypes("*")
-@SupportedOptions({GrammarKitProcessor.LEXER_OPTION, GrammarKitProcessor.PARSER_OPTION})
+@SupportedAnnotationTypes("dev.johanness.grammarkit.processor.GrammarKitParser")
+@SupportedOptions({
+    GrammarKitProcessor.LEXER_OPTION,
+    GrammarKitProcessor.PARSER_OPTION,
+    GrammarKitProcessor.THREADS_OPTION,
+    GrammarKitProcessor.STATE_DIR_OPTION,
+    GrammarKitProcessor.REPORT_OPTION,
+    GrammarKitProcessor.LEXER_TABLES_OPTION,
+    GrammarKitProcessor.OPTIMIZE_OPTION,
+    GrammarKitProcessor.BENCHMARKS_OPTION,
+    GrammarKitProcessor.PROFILE_OPTION,
+})
 @SupportedSourceVersion(SourceVersion.RELEASE_11)
 public final class GrammarKitProcessor extends AbstractProcessor {
   static final String LEXER_OPTION = "lexer";
   static final String PARSER_OPTION = "parser";
+  static final String THREADS_OPTION = "grammarkit.threads";
+  static final String STATE_DIR_OPTION = "grammarkit.stateDir";
+  static final String REPORT_OPTION = "grammarkit.report";
+  static final String LEXER_TABLES_OPTION = "grammarkit.lexerTables";
+  static final String OPTIMIZE_OPTION = "grammarkit.optimize";
+  static final String BENCHMARKS_OPTION = "grammarkit.benchmarks";
+  static final String PROFILE_OPTION = "grammarkit.profile";
+
+  private static final int DEFAULT_PROFILE_ENTRIES = 10;
+
+  private static final String PARSER_DEFINITION_CLASS = "com.intellij.lang.ParserDefinition";
 
   private final Queue<Path> lexers = new ArrayDeque<>();
   private final Queue<Path> parsers = new ArrayDeque<>();
+  private final Map<Path, Element> originatingElements = new HashMap<>();
+  private final BuildReport report = new BuildReport();
 
-  private BnfParserDefinition parserDefinition;
+  private int threads;
+  private @Nullable Path stateDirectory;
+  private @Nullable Path benchmarkCorpus;
+  private @Nullable Path reportFile;
+  private @Nullable Trees trees;
+  private boolean binaryLexerTables;
+  private boolean optimize;
+  private @Nullable RuleProfiler profiler;
+  private int profileEntries;
+  private @Nullable GrammarGenerator generator;
+  private @Nullable LexerGenerator lexerGenerator;
 
   @Override
   public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
     lexers.addAll(parseOption(LEXER_OPTION));
     parsers.addAll(parseOption(PARSER_OPTION));
+    threads = parseThreadsOption();
+    stateDirectory = parsePathOption(STATE_DIR_OPTION);
+    benchmarkCorpus = parsePathOption(BENCHMARKS_OPTION);
+    profileEntries = parseProfileOption();
+    profiler = profileEntries > 0 ? new RuleProfiler() : null;
+    reportFile = parsePathOption(REPORT_OPTION);
+    trees = ProcessingEnvironments.getTrees(processingEnv);
+    binaryLexerTables = parseLexerTablesOption();
+    optimize = processingEnv.getOptions().containsKey(OPTIMIZE_OPTION) &&
+               !"false".equals(processingEnv.getOptions().get(OPTIMIZE_OPTION));
+  }
 
-    LightPsi.init();
-    replaceJavaHelper(processingEnv);
-    LightPsi.Init.addKeyedExtension(LanguageASTFactory.INSTANCE, BnfLanguage.INSTANCE, new BnfASTFactory(), null);
-    LightPsi.Init.addKeyedExtension(LanguageBraceMatching.INSTANCE, BnfLanguage.INSTANCE, new BnfBraceMatcher(), null);
-
-    parserDefinition = new BnfParserDefinition();
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    // Grammars given by options must be generated even if the annotation
+    // is not used anywhere.
+    return lexers.isEmpty() && parsers.isEmpty()
+        ? super.getSupportedAnnotationTypes()
+        : Set.of("*");
   }
 
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    if (generator != null) {
+      generator.startRound();
+    }
+    collectAnnotatedParsers(roundEnv);
+    if (benchmarkCorpus != null && !parsers.isEmpty()) {
+      generator().addParserDefinitions(findParserDefinitions(roundEnv));
+    }
+    if (!lexers.isEmpty()) {
+      generateLexers();
+    }
+    if (!parsers.isEmpty()) {
+      generator().snapshot(findReferencedClasses());
+    }
+    if (threads > 1 && parsers.size() > 1) {
+      generateParallel();
+    }
+    else if (!parsers.isEmpty()) {
+      generateSequential();
+    }
+    if (roundEnv.processingOver()) {
+      finish();
+    }
+    return false;
+  }
+
+  private void generateLexers() {
+    // Lexers are written into the Filer right away, so they are generated
+    // by this thread.
+    SourceSink sink = SourceSink.of(processingEnv.getFiler());
+    while (!lexers.isEmpty()) {
+      Path source = Objects.requireNonNull(lexers.poll());
+      try {
+        if (!lexerGenerator().generate(source, report.grammar(source).count(sink))) {
+          processingEnv.getMessager().printMessage(
+              Diagnostic.Kind.ERROR,
+              "Invalid JFlex file: " + source);
+        }
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(
+            Diagnostic.Kind.ERROR,
+            e.toString());
+      }
+    }
+  }
+
+  private void collectAnnotatedParsers(RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(GrammarKitParser.class)) {
+      for (String value : element.getAnnotation(GrammarKitParser.class).value()) {
+        Path source = resolveAnnotatedParser(element, value);
+        if (source == null) {
+          processingEnv.getMessager().printMessage(
+              Diagnostic.Kind.ERROR,
+              "Cannot find BNF file: " + value,
+              element);
+        }
+        else if (originatingElements.putIfAbsent(source, element) == null) {
+          parsers.add(source);
+        }
+      }
+    }
+  }
+
+  private @Nullable Path resolveAnnotatedParser(Element element, String value) {
+    Path path = Path.of(value);
+    if (path.isAbsolute()) {
+      return path.normalize();
+    }
+    Path directory = getSourceDirectory(element);
+    if (directory != null && Files.isRegularFile(directory.resolve(path))) {
+      return directory.resolve(path).normalize();
+    }
+    try {
+      String packageName = processingEnv.getElementUtils().getPackageOf(element)
+          .getQualifiedName().toString();
+      FileObject file = processingEnv.getFiler()
+          .getResource(StandardLocation.SOURCE_PATH, packageName, value);
+      return Path.of(file.toUri()).normalize();
+    }
+    catch (IOException | IllegalArgumentException | FileSystemNotFoundException e) {
+      return null;
+    }
+  }
+
+  private @Nullable Path getSourceDirectory(Element element) {
+    TreePath path = trees == null ? null : trees.getPath(element);
+    if (path == null) {
+      return null;
+    }
+    URI uri = path.getCompilationUnit().getSourceFile().toUri();
+    return "file".equals(uri.getScheme()) ? Path.of(uri).getParent() : null;
+  }
+
+  private @NotNull Set<String> findReferencedClasses() {
+    Set<String> classNames = new LinkedHashSet<>();
+    for (Path source : parsers) {
+      try {
+        classNames.addAll(ReferencedClasses.scan(Files.readString(source)));
+      }
+      catch (IOException e) {
+        // Reported when the grammar is generated
+      }
+    }
+    return classNames;
+  }
+
+  private @NotNull List<String> findParserDefinitions(RoundEnvironment roundEnv) {
+    TypeElement parserDefinition = processingEnv.getElementUtils().getTypeElement(PARSER_DEFINITION_CLASS);
+    if (parserDefinition == null) {
+      return List.of();
+    }
+    Types types = processingEnv.getTypeUtils();
+    TypeMirror parserDefinitionType = types.erasure(parserDefinition.asType());
+    return ElementFilter.typesIn(roundEnv.getRootElements()).stream()
+        .filter(type -> !type.getModifiers().contains(Modifier.ABSTRACT))
+        .filter(type -> types.isAssignable(types.erasure(type.asType()), parserDefinitionType))
+        .map(type -> type.getQualifiedName().toString())
+        .collect(Collectors.toList());
+  }
+
+  private void generateSequential() {
     while (!parsers.isEmpty()) {
-      try (TempDir tempDir = new TempDir()) {
+      Path source = Objects.requireNonNull(parsers.poll());
+      SourceSink sink = sinkFor(source);
+      try {
+        if (!generator().generate(source, optimized(report.grammar(source).count(sink)))) {
+          reportInvalidBnfFile(source);
+        }
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(
+            Diagnostic.Kind.ERROR,
+            e.toString());
+      }
+    }
+  }
+
+  private void generateParallel() {
+    // Grammars are generated into memory by the worker threads. This thread
+    // checks and saves the incremental state, answers the queries of the
+    // workers about classes until all workers are done, and writes the
+    // results into the Filer afterwards, as javac is not thread-safe.
+    GrammarGenerator generator = generator();
+    ProcessingThread processingThread = generator.getProcessingThread();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(threads, parsers.size()), new WorkerThreadFactory());
+    try {
+      Map<Path, Future<BufferedSources>> results = new LinkedHashMap<>();
+      Map<Path, Set<String>> queriedClasses = new HashMap<>();
+      while (!parsers.isEmpty()) {
         Path source = Objects.requireNonNull(parsers.poll());
-        PsiFile bnfFile = LightPsi.parseFile(source.toFile(), parserDefinition);
-        if (bnfFile instanceof BnfFile) {
-          new ParserGenerator(
-              (BnfFile) bnfFile,
-              source.getParent().toAbsolutePath().toString(),
-              tempDir.getPath().toString(),
-              ""
-          ).generate();
-
-          Files.walkFileTree(tempDir.getPath(), new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-              String relative = tempDir.getPath().relativize(file).toString();
-              String className = relative.replaceAll("\\.java$", "").replaceAll("[/\\\\]", ".");
-              try (InputStream in = Files.newInputStream(file);
-                   OutputStream out = processingEnv.getFiler().createSourceFile(className).openOutputStream()) {
-                in.transferTo(out);
-              }
-              return FileVisitResult.CONTINUE;
-            }
-          });
+        BufferedSources upToDate;
+        try {
+          upToDate = generator.loadIfUpToDate(source);
+        }
+        catch (IOException e) {
+          processingEnv.getMessager().printMessage(
+              Diagnostic.Kind.ERROR,
+              e.toString());
+          continue;
+        }
+        if (upToDate != null) {
+          results.put(source, CompletableFuture.completedFuture(upToDate));
         }
         else {
+          Set<String> classNames = new TreeSet<>();
+          queriedClasses.put(source, classNames);
+          results.put(source, processingThread.submit(executor, () -> generator.generateBuffered(source, classNames)));
+        }
+      }
+      processingThread.serveUntilDone(results.values());
+      for (Map.Entry<Path, Future<BufferedSources>> entry : results.entrySet()) {
+        try {
+          BufferedSources sources = entry.getValue().get();
+          if (sources == null) {
+            reportInvalidBnfFile(entry.getKey());
+          }
+          else {
+            Set<String> classNames = queriedClasses.get(entry.getKey());
+            if (classNames != null) {
+              generator.saveState(entry.getKey(), sources, classNames);
+            }
+            BuildReport.Grammar grammarReport = report.grammar(entry.getKey());
+            try (BuildReport.Phase ignored = grammarReport.phase("write")) {
+              sources.writeTo(optimized(grammarReport.count(sinkFor(entry.getKey()))));
+            }
+          }
+        }
+        catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR,
+                cause.toString());
+          }
+          else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          else {
+            throw new IllegalStateException(cause);
+          }
+        }
+        catch (IOException e) {
           processingEnv.getMessager().printMessage(
               Diagnostic.Kind.ERROR,
-              "Invalid BNF file: " + source);
+              e.toString());
         }
       }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.ERROR,
+          "Interrupted while generating parsers");
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private @NotNull SourceSink sinkFor(Path source) {
+    Element element = originatingElements.get(source);
+    return SourceSink.of(
+        processingEnv.getFiler(),
+        generator()::getTypeElement,
+        element == null ? List.of() : List.of(element));
+  }
+
+  private @NotNull SourceSink optimized(SourceSink sink) {
+    return optimize ? ParserOptimizer.wrap(sink) : sink;
+  }
+
+  private @NotNull GrammarGenerator generator() {
+    // Created lazily to avoid loading IntelliJ if there is nothing to do.
+    if (generator == null) {
+      try (BuildReport.Phase ignored = report.phase("init")) {
+        generator = new GrammarGenerator(
+            processingEnv, stateDirectory, benchmarkCorpus, profiler, report);
+      }
+    }
+    return generator;
+  }
+
+  private @NotNull LexerGenerator lexerGenerator() {
+    // Created lazily to avoid loading JFlex if there is nothing to do.
+    if (lexerGenerator == null) {
+      lexerGenerator = new LexerGenerator(processingEnv, binaryLexerTables, report);
+    }
+    return lexerGenerator;
+  }
+
+  private void finish() {
+    if (generator != null) {
+      generator.reportStatistics();
+      generator.dispose();
+      generator = null;
+    }
+    if (profiler != null) {
+      for (RuleProfiler.Entry entry : profiler.top(profileEntries)) {
+        processingEnv.getMessager().printMessage(
+            Diagnostic.Kind.NOTE,
+            "Profile of Grammar-Kit: " + entry);
+      }
+    }
+    if (reportFile != null) {
+      try {
+        report.write(reportFile);
+      }
       catch (IOException e) {
         processingEnv.getMessager().printMessage(
-            Diagnostic.Kind.ERROR,
-            e.toString());
+            Diagnostic.Kind.WARNING,
+            "Cannot write report: " + e);
       }
     }
-    return false;
+  }
+
+  private void reportInvalidBnfFile(Path source) {
+    processingEnv.getMessager().printMessage(
+        Diagnostic.Kind.ERROR,
+        "Invalid BNF file: " + source);
+  }
+
+  private int parseThreadsOption() {
+    String value = processingEnv.getOptions().get(THREADS_OPTION);
+    if (value == null) {
+      return 1;
+    }
+    try {
+      int threads = Integer.parseInt(value.strip());
+      return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    catch (NumberFormatException e) {
+      processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.ERROR,
+          "Invalid value for -A" + THREADS_OPTION + ": " + value);
+      return 1;
+    }
+  }
+
+  private int parseProfileOption() {
+    if (!processingEnv.getOptions().containsKey(PROFILE_OPTION)) {
+      return 0;
+    }
+    // javac reports options without value as null.
+    String value = processingEnv.getOptions().get(PROFILE_OPTION);
+    if (value == null || value.isBlank()) {
+      return DEFAULT_PROFILE_ENTRIES;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(value.strip()));
+    }
+    catch (NumberFormatException e) {
+      processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.ERROR,
+          "Invalid value for -A" + PROFILE_OPTION + ": " + value);
+      return 0;
+    }
+  }
+
+  private boolean parseLexerTablesOption() {
+    String value = processingEnv.getOptions().get(LEXER_TABLES_OPTION);
+    if (value == null || value.strip().equals("strings")) {
+      return false;
+    }
+    else if (value.strip().equals("binary")) {
+      return true;
+    }
+    else {
+      processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.ERROR,
+          "Invalid value for -A" + LEXER_TABLES_OPTION + ": " + value);
+      return false;
+    }
+  }
+
+  private @Nullable Path parsePathOption(String optionName) {
+    return Optional.ofNullable(processingEnv.getOptions().get(optionName))
+        .filter(Predicate.not(String::isBlank))
+        .map(Path::of)
+        .orElse(null);
   }
 
   private List<Path> parseOption(String optionName) {
@@ -123,22 +481,14 @@ private List<Path> parseOption(String optionName) {
     }
   }
 
-  private static void replaceJavaHelper(ProcessingEnvironment processingEnv) {
-    Object parsing = getField(LightPsi.class, null, "ourParsing");
-    CoreProjectEnvironment proj = getField(parsing.getClass(), parsing, "proj");
-    proj.getProject().getPicoContainer().unregisterComponent(JavaHelper.class.getName());
-    proj.getProject().registerService(JavaHelper.class, new MyJavaHelper(processingEnv));
-  }
+  private static final class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger counter = new AtomicInteger();
 
-  @SuppressWarnings("unchecked")
-  private static <T> T getField(Class<?> clazz, Object instance, String name) {
-    try {
-      Field field = clazz.getDeclaredField(name);
-      field.trySetAccessible();
-      return (T) field.get(instance);
-    }
-    catch (IllegalAccessException | NoSuchFieldException e) {
-      throw new IllegalStateException(e);
+    @Override
+    public Thread newThread(@NotNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "grammar-kit-worker-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
     }
   }
 }
@@ -0,0 +1,93 @@
+package dev.johanness.grammarkit.processor;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ImportTree;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the imports of a compilation unit. Used to resolve the names of
+ * types which are not available yet, as they are about to be generated.
+ */
+final class ImportIndex {
+  private final @NotNull String packageName;
+  private final @NotNull Map<String, List<String>> singleTypeImports;
+  private final @NotNull List<String> wildcardImports;
+  private final Map<String, Collection<String>> resolved = new ConcurrentHashMap<>();
+
+  private ImportIndex(
+      @NotNull String packageName,
+      @NotNull Map<String, List<String>> singleTypeImports,
+      @NotNull List<String> wildcardImports)
+  {
+    this.packageName = packageName;
+    this.singleTypeImports = singleTypeImports;
+    this.wildcardImports = wildcardImports;
+  }
+
+  static @NotNull ImportIndex of(@NotNull String packageName, @Nullable CompilationUnitTree unit) {
+    Map<String, List<String>> singleTypeImports = new HashMap<>();
+    List<String> wildcardImports = new ArrayList<>();
+    if (unit != null) {
+      for (ImportTree importTree : unit.getImports()) {
+        if (importTree.isStatic()) {
+          continue;
+        }
+        String name = importTree.getQualifiedIdentifier().toString();
+        int lastDot = name.lastIndexOf('.');
+        String simpleName = name.substring(lastDot + 1);
+        if (simpleName.equals("*")) {
+          wildcardImports.add(name.substring(0, lastDot));
+        }
+        else {
+          singleTypeImports.computeIfAbsent(simpleName, key -> new ArrayList<>(1)).add(name);
+        }
+      }
+    }
+    return new ImportIndex(packageName, singleTypeImports, wildcardImports);
+  }
+
+  /**
+   * Returns the candidates for the qualified name of the given type name as
+   * it is written in the compilation unit. The candidates are ordered by
+   * their priority.
+   */
+  @NotNull Collection<String> resolve(@NotNull String typeName) {
+    return resolved.computeIfAbsent(typeName, this::computeCandidates);
+  }
+
+  private @NotNull Collection<String> computeCandidates(@NotNull String typeName) {
+    int firstDot = typeName.indexOf('.');
+    String firstPart = firstDot < 0 ? typeName : typeName.substring(0, firstDot);
+    List<String> specific = singleTypeImports.get(firstPart);
+    if (specific == null) {
+      List<String> candidates = new ArrayList<>(2 + wildcardImports.size());
+      candidates.add(typeName);
+      if (!packageName.isEmpty()) {
+        candidates.add(packageName + "." + typeName);
+      }
+      for (String wildcardImport : wildcardImports) {
+        candidates.add(wildcardImport + "." + typeName);
+      }
+      return List.copyOf(candidates);
+    }
+    else if (firstDot >= 0) {
+      String remainder = typeName.substring(firstDot);
+      List<String> candidates = new ArrayList<>(specific.size());
+      for (String im : specific) {
+        candidates.add(im + remainder);
+      }
+      return List.copyOf(candidates);
+    }
+    else {
+      return List.copyOf(specific);
+    }
+  }
+}
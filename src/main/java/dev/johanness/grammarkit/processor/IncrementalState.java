@@ -0,0 +1,224 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.generator.ParserGenerator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * State of a previous generation of a grammar. The state contains the
+ * generated sources, which can be replayed as long as the grammar, the
+ * settings of the generation, the builds of this processor and Grammar-Kit,
+ * and the classes queried through {@link MyJavaHelper} have not changed.
+ * The builds are identified by a hash of the JAR file or the directory
+ * containing the classes, since the version in the manifest is not changed
+ * by every build. If the hash cannot be computed, no state is reused.
+ */
+final class IncrementalState {
+  private static final String STATE_FILE = "state.properties";
+  private static final String SOURCE_SUFFIX = ".java";
+
+  private static final String GRAMMAR_KEY = "grammar";
+  private static final String GRAMMAR_HASH_KEY = "grammar.hash";
+  private static final String SETTINGS_KEY = "settings";
+  private static final String PROCESSOR_VERSION_KEY = "version.processor";
+  private static final String GRAMMAR_KIT_VERSION_KEY = "version.grammarkit";
+  private static final String SOURCES_KEY = "sources";
+  private static final String ORIGINATING_KEY = "originating";
+  private static final String CLASS_KEY_PREFIX = "class.";
+
+  private static final @Nullable String PROCESSOR_VERSION = hashCodeSource(IncrementalState.class);
+  private static final @Nullable String GRAMMAR_KIT_VERSION = hashCodeSource(ParserGenerator.class);
+
+  private final @NotNull Path directory;
+  private final @NotNull String grammar;
+  private final @NotNull String grammarHash;
+  private final @NotNull String settings;
+
+  /**
+   * @param settings description of the options which affect the generated
+   *                 sources, like the generation of benchmarks
+   */
+  IncrementalState(@NotNull Path stateDirectory, @NotNull Path grammar, @NotNull String settings) throws IOException {
+    this.grammar = grammar.toAbsolutePath().normalize().toString();
+    this.directory = stateDirectory.resolve(hash(this.grammar).substring(0, 16));
+    this.grammarHash = hash(Files.readAllBytes(grammar));
+    this.settings = settings;
+  }
+
+  /**
+   * Returns the sources of the previous generation, or {@code null} if
+   * they are missing or outdated.
+   */
+  @Nullable BufferedSources loadIfUpToDate(@NotNull Function<String, String> describeClass) throws IOException {
+    Path stateFile = directory.resolve(STATE_FILE);
+    if (PROCESSOR_VERSION == null || GRAMMAR_KIT_VERSION == null || !Files.isRegularFile(stateFile)) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    if (!grammar.equals(properties.getProperty(GRAMMAR_KEY)) ||
+        !grammarHash.equals(properties.getProperty(GRAMMAR_HASH_KEY)) ||
+        !settings.equals(properties.getProperty(SETTINGS_KEY)) ||
+        !PROCESSOR_VERSION.equals(properties.getProperty(PROCESSOR_VERSION_KEY)) ||
+        !GRAMMAR_KIT_VERSION.equals(properties.getProperty(GRAMMAR_KIT_VERSION_KEY))) {
+      return null;
+    }
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(CLASS_KEY_PREFIX)) {
+        String className = key.substring(CLASS_KEY_PREFIX.length());
+        if (!properties.getProperty(key).equals(hash(describeClass.apply(className)))) {
+          return null;
+        }
+      }
+    }
+
+    BufferedSources sources = new BufferedSources();
+    List<String> originatingClasses = split(properties.getProperty(ORIGINATING_KEY, ""));
+    for (String className : split(properties.getProperty(SOURCES_KEY, ""))) {
+      Path file = directory.resolve(className + SOURCE_SUFFIX);
+      if (!Files.isRegularFile(file)) {
+        return null;
+      }
+      try (Writer writer = sources.openSource(className, originatingClasses)) {
+        writer.write(Files.readString(file, StandardCharsets.UTF_8));
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Replaces the stored state.
+   *
+   * @param sources the generated sources
+   * @param classDescriptions descriptions of all classes which were queried
+   *                          during generation, see {@link MyJavaHelper#describeClass(String)}
+   */
+  void save(@NotNull BufferedSources sources, @NotNull Map<String, String> classDescriptions) throws IOException {
+    if (PROCESSOR_VERSION == null || GRAMMAR_KIT_VERSION == null) {
+      // The state could never be loaded.
+      return;
+    }
+    Files.createDirectories(directory);
+    Files.deleteIfExists(directory.resolve(STATE_FILE));
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SOURCE_SUFFIX)) {
+      for (Path file : stream) {
+        Files.delete(file);
+      }
+    }
+
+    Properties properties = new Properties();
+    properties.setProperty(GRAMMAR_KEY, grammar);
+    properties.setProperty(GRAMMAR_HASH_KEY, grammarHash);
+    properties.setProperty(SETTINGS_KEY, settings);
+    properties.setProperty(PROCESSOR_VERSION_KEY, PROCESSOR_VERSION);
+    properties.setProperty(GRAMMAR_KIT_VERSION_KEY, GRAMMAR_KIT_VERSION);
+    properties.setProperty(SOURCES_KEY, String.join(",", sources.getSources().keySet()));
+    properties.setProperty(ORIGINATING_KEY, String.join(",", sources.getOriginatingClasses()));
+    for (Map.Entry<String, String> entry : classDescriptions.entrySet()) {
+      properties.setProperty(CLASS_KEY_PREFIX + entry.getKey(), hash(entry.getValue()));
+    }
+    for (Map.Entry<String, String> entry : sources.getSources().entrySet()) {
+      Files.writeString(directory.resolve(entry.getKey() + SOURCE_SUFFIX), entry.getValue(), StandardCharsets.UTF_8);
+    }
+
+    // Write the state file last, so that interrupted writes are never
+    // mistaken as a valid state.
+    Path tempFile = Files.createTempFile(directory, STATE_FILE, ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    Files.move(tempFile, directory.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static @NotNull List<String> split(@NotNull String value) {
+    List<String> result = new ArrayList<>();
+    for (String item : value.split(",")) {
+      if (!item.isEmpty()) {
+        result.add(item);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a hash of the JAR file or the directory which contains the
+   * given class, or {@code null} if it cannot be read.
+   */
+  private static @Nullable String hashCodeSource(@NotNull Class<?> clazz) {
+    CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null) {
+      return null;
+    }
+    try {
+      Path location = Path.of(codeSource.getLocation().toURI());
+      MessageDigest digest = newDigest();
+      if (Files.isDirectory(location)) {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(location)) {
+          files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+          digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+          digest.update(Files.readAllBytes(file));
+        }
+      }
+      else {
+        digest.update(Files.readAllBytes(location));
+      }
+      return toHex(digest.digest());
+    }
+    catch (IOException | URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static @NotNull String hash(@NotNull String value) {
+    return hash(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static @NotNull String hash(byte @NotNull [] value) {
+    return toHex(newDigest().digest(value));
+  }
+
+  private static @NotNull MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static @NotNull String toHex(byte @NotNull [] digest) {
+    StringBuilder builder = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+      builder.append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+}
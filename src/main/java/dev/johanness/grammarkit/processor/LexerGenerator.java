@@ -0,0 +1,146 @@
+package dev.johanness.grammarkit.processor;
+
+import jflex.GeneratorException;
+import jflex.Main;
+import jflex.SilentExit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates lexers with JFlex. This class is the entry point to all classes
+ * of JFlex. It must only be loaded if there is actually something to
+ * generate.
+ */
+final class LexerGenerator {
+  // JFlex keeps its options, including the output directory, in static
+  // fields. Compilations within the same JVM must not run it at the same
+  // time.
+  private static final Object JFLEX_LOCK = new Object();
+
+  private static final Pattern PACKAGE_PATTERN =
+      Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+  private final @NotNull ProcessingEnvironment processingEnv;
+  private final boolean binaryTables;
+  private final @NotNull BuildReport report;
+
+  LexerGenerator(
+      @NotNull ProcessingEnvironment processingEnv,
+      boolean binaryTables,
+      @NotNull BuildReport report)
+  {
+    this.processingEnv = processingEnv;
+    this.binaryTables = binaryTables;
+    this.report = report;
+  }
+
+  /**
+   * Generates the lexer for the given JFlex file into the given sink.
+   *
+   * @return {@code false} if JFlex failed to generate the lexer
+   */
+  boolean generate(@NotNull Path source, @NotNull SourceSink sink) throws IOException {
+    BuildReport.Grammar grammarReport = report.grammar(source);
+    Path outputDirectory = Files.createTempDirectory("grammar-kit-lexer");
+    try {
+      try (BuildReport.Phase ignored = grammarReport.phase("generate")) {
+        synchronized (JFLEX_LOCK) {
+          Main.generate(new String[]{
+              "-q",
+              "--nobak",
+              "-d", outputDirectory.toString(),
+              source.toString(),
+          });
+        }
+      }
+      catch (SilentExit | GeneratorException e) {
+        return false;
+      }
+      try (BuildReport.Phase ignored = grammarReport.phase("write")) {
+        for (Path file : listSources(outputDirectory)) {
+          String content = Files.readString(file, StandardCharsets.UTF_8);
+          String simpleName = getSimpleName(file);
+          String packageName = getPackageName(content);
+          if (binaryTables) {
+            content = moveTablesIntoResource(packageName, simpleName, content);
+          }
+          String className = packageName == null ? simpleName : packageName + "." + simpleName;
+          try (Writer writer = sink.openSource(className, List.of())) {
+            writer.write(content);
+          }
+        }
+      }
+      return true;
+    }
+    finally {
+      deleteRecursively(outputDirectory);
+    }
+  }
+
+  private static @NotNull List<Path> listSources(@NotNull Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> file.getFileName().toString().endsWith(".java"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private @NotNull String moveTablesIntoResource(
+      @Nullable String packageName,
+      @NotNull String simpleName,
+      @NotNull String content) throws IOException
+  {
+    LexerTables tables = LexerTables.rewrite(simpleName, content);
+    if (tables == null) {
+      processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.WARNING,
+          "Cannot move the tables of " + simpleName + " into a resource");
+      return content;
+    }
+    try (OutputStream output = processingEnv.getFiler().createResource(
+        StandardLocation.CLASS_OUTPUT,
+        packageName == null ? "" : packageName,
+        simpleName + LexerTables.RESOURCE_SUFFIX).openOutputStream())
+    {
+      output.write(tables.getResource());
+    }
+    return tables.getSource();
+  }
+
+  private static @NotNull String getSimpleName(@NotNull Path file) {
+    String fileName = file.getFileName().toString();
+    return fileName.substring(0, fileName.length() - ".java".length());
+  }
+
+  private static @Nullable String getPackageName(@NotNull String content) {
+    Matcher matcher = PACKAGE_PATTERN.matcher(content);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  private static void deleteRecursively(@NotNull Path directory) throws IOException {
+    List<Path> files;
+    try (Stream<Path> stream = Files.walk(directory)) {
+      files = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      Files.delete(file);
+    }
+  }
+}
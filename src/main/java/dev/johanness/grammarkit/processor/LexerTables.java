@@ -0,0 +1,361 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves the DFA tables of a lexer generated by JFlex into a binary
+ * resource. JFlex encodes the tables as string literals which are unpacked
+ * in the static initializer of the lexer. The rewritten lexer reads the
+ * resource into a nested class instead, which is only initialized when the
+ * lexer is used for the first time.
+ *
+ * <p>The resource contains the tables in the order of {@link Table}. Every
+ * table starts with its length as {@code int} and the number of bytes per
+ * entry as {@code byte}, followed by the entries incremented by one, so
+ * that {@code -1} can be stored as unsigned value.
+ *
+ * <p>The lexer reads the resource into a heap buffer. A resource on the
+ * class path may be inside a JAR file and cannot be memory-mapped, and the
+ * tables are copied into arrays anyway, so a direct buffer would only add
+ * another copy.
+ */
+final class LexerTables {
+  static final String HOLDER_CLASS = "ZzTables";
+  static final String RESOURCE_SUFFIX = ".tables";
+
+  private static final Pattern BLANK_LINES = Pattern.compile("\n(?:[ \t]*\n){2,}");
+  private static final Pattern STRING_LITERAL = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private final @NotNull String source;
+  private final byte @NotNull [] resource;
+
+  private LexerTables(@NotNull String source, byte @NotNull [] resource) {
+    this.source = source;
+    this.resource = resource;
+  }
+
+  /**
+   * Returns the source of the lexer without the tables.
+   */
+  @NotNull String getSource() {
+    return source;
+  }
+
+  /**
+   * Returns the content of the resource with the tables.
+   */
+  byte @NotNull [] getResource() {
+    return resource;
+  }
+
+  /**
+   * Moves the tables of the given lexer into a resource.
+   *
+   * @return the rewritten lexer, or {@code null} if the lexer does not
+   *         look like expected
+   */
+  static @Nullable LexerTables rewrite(@NotNull String simpleName, @NotNull String source) {
+    ByteArrayOutputStream resource = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(resource);
+    for (Table table : Table.values()) {
+      Matcher declaration = table.declarationPattern().matcher(source);
+      if (!declaration.find()) {
+        return null;
+      }
+      int[] values = table.unpack(source);
+      if (values == null) {
+        return null;
+      }
+      writeTable(output, values);
+      source = source.substring(0, declaration.start()) + source.substring(declaration.end());
+      source = table.packedPattern().matcher(source).replaceAll("");
+      for (Pattern method : table.methodPatterns()) {
+        source = removeMethod(source, method);
+        if (source == null) {
+          return null;
+        }
+      }
+      source = table.referencePattern().matcher(source)
+          .replaceAll(HOLDER_CLASS + "." + table.fieldName());
+    }
+
+    source = BLANK_LINES.matcher(source).replaceAll("\n\n");
+    int end = source.lastIndexOf('}');
+    if (end < 0) {
+      return null;
+    }
+    return new LexerTables(
+        source.substring(0, end) + holderClass(simpleName) + source.substring(end),
+        resource.toByteArray());
+  }
+
+  private static void writeTable(@NotNull DataOutputStream output, int @NotNull [] values) {
+    int max = 0;
+    for (int value : values) {
+      max = Math.max(max, value + 1);
+    }
+    int width = max < 0x100 ? 1 : max < 0x10000 ? 2 : 4;
+    try {
+      output.writeInt(values.length);
+      output.writeByte(width);
+      for (int value : values) {
+        switch (width) {
+          case 1:
+            output.writeByte(value + 1);
+            break;
+          case 2:
+            output.writeShort(value + 1);
+            break;
+          default:
+            output.writeInt(value + 1);
+            break;
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static @Nullable String removeMethod(@NotNull String source, @NotNull Pattern method) {
+    Matcher matcher = method.matcher(source);
+    if (!matcher.find()) {
+      return null;
+    }
+    int depth = 0;
+    for (int i = source.indexOf('{', matcher.end()); i >= 0 && i < source.length(); ++i) {
+      char c = source.charAt(i);
+      if (c == '{') {
+        ++depth;
+      }
+      else if (c == '}' && --depth == 0) {
+        return source.substring(0, matcher.start()) + source.substring(i + 1);
+      }
+    }
+    return null;
+  }
+
+  private static @NotNull String holderClass(@NotNull String simpleName) {
+    String resourceName = simpleName + RESOURCE_SUFFIX;
+    StringBuilder code = new StringBuilder();
+    code.append("\n");
+    code.append("  /** Tables of the DFA, loaded from {@code ").append(resourceName).append("} on first use. */\n");
+    code.append("  private static final class ").append(HOLDER_CLASS).append(" {\n");
+    for (Table table : Table.values()) {
+      code.append("    static final int [] ").append(table.fieldName()).append(";\n");
+    }
+    code.append("\n");
+    code.append("    static {\n");
+    code.append("      java.nio.ByteBuffer buffer;\n");
+    code.append("      try (java.io.InputStream input = ").append(simpleName)
+        .append(".class.getResourceAsStream(\"").append(resourceName).append("\")) {\n");
+    code.append("        if (input == null) {\n");
+    code.append("          throw new IllegalStateException(\"Missing resource: ").append(resourceName).append("\");\n");
+    code.append("        }\n");
+    code.append("        buffer = java.nio.ByteBuffer.wrap(input.readAllBytes());\n");
+    code.append("      }\n");
+    code.append("      catch (java.io.IOException e) {\n");
+    code.append("        throw new java.io.UncheckedIOException(e);\n");
+    code.append("      }\n");
+    for (Table table : Table.values()) {
+      code.append("      ").append(table.fieldName()).append(" = readTable(buffer);\n");
+    }
+    code.append("    }\n");
+    code.append("\n");
+    code.append("    private static int [] readTable(java.nio.ByteBuffer buffer) {\n");
+    code.append("      int [] table = new int[buffer.getInt()];\n");
+    code.append("      int width = buffer.get();\n");
+    code.append("      if (width == 4) {\n");
+    code.append("        buffer.asIntBuffer().get(table);\n");
+    code.append("        buffer.position(buffer.position() + 4 * table.length);\n");
+    code.append("        for (int i = 0; i < table.length; ++i) table[i]--;\n");
+    code.append("      }\n");
+    code.append("      else if (width == 2) {\n");
+    code.append("        for (int i = 0; i < table.length; ++i) table[i] = (buffer.getShort() & 0xFFFF) - 1;\n");
+    code.append("      }\n");
+    code.append("      else {\n");
+    code.append("        for (int i = 0; i < table.length; ++i) table[i] = (buffer.get() & 0xFF) - 1;\n");
+    code.append("      }\n");
+    code.append("      return table;\n");
+    code.append("    }\n");
+    code.append("  }\n");
+    return code.toString();
+  }
+
+  private static @NotNull String decodeLiterals(@NotNull String expression) {
+    StringBuilder value = new StringBuilder();
+    Matcher matcher = STRING_LITERAL.matcher(expression);
+    while (matcher.find()) {
+      decodeLiteral(matcher.group(1), value);
+    }
+    return value.toString();
+  }
+
+  private static void decodeLiteral(@NotNull String literal, @NotNull StringBuilder value) {
+    for (int i = 0; i < literal.length(); ++i) {
+      char c = literal.charAt(i);
+      if (c != '\\') {
+        value.append(c);
+        continue;
+      }
+      c = literal.charAt(++i);
+      switch (c) {
+        case 'b': value.append('\b'); break;
+        case 't': value.append('\t'); break;
+        case 'n': value.append('\n'); break;
+        case 'f': value.append('\f'); break;
+        case 'r': value.append('\r'); break;
+        case 'u': {
+          while (literal.charAt(i) == 'u') {
+            ++i;
+          }
+          value.append((char) Integer.parseInt(literal.substring(i, i + 4), 16));
+          i += 3;
+          break;
+        }
+        default: {
+          if (c >= '0' && c <= '7') {
+            int end = i + 1;
+            int maxEnd = Math.min(literal.length(), c <= '3' ? i + 3 : i + 2);
+            while (end < maxEnd && literal.charAt(end) >= '0' && literal.charAt(end) <= '7') {
+              ++end;
+            }
+            value.append((char) Integer.parseInt(literal.substring(i, end), 8));
+            i = end - 1;
+          }
+          else {
+            value.append(c);
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Tables of the DFA as emitted by JFlex, and how JFlex packs them.
+   */
+  private enum Table {
+    ACTION("ZZ_ACTION", "zzUnpackAction", Encoding.RUN_LENGTH),
+    ROWMAP("ZZ_ROWMAP", "zzUnpackRowMap", Encoding.HIGH_LOW),
+    TRANS("ZZ_TRANS", "zzUnpackTrans", Encoding.RUN_LENGTH_DECREMENTED),
+    ATTRIBUTE("ZZ_ATTRIBUTE", "zzUnpackAttribute", Encoding.RUN_LENGTH);
+
+    private final @NotNull String fieldName;
+    private final @NotNull String methodName;
+    private final @NotNull Encoding encoding;
+
+    Table(@NotNull String fieldName, @NotNull String methodName, @NotNull Encoding encoding) {
+      this.fieldName = fieldName;
+      this.methodName = methodName;
+      this.encoding = encoding;
+    }
+
+    @NotNull String fieldName() {
+      return fieldName;
+    }
+
+    @NotNull Pattern declarationPattern() {
+      return Pattern.compile(
+          "(?:/\\*\\*(?:[^*]|\\*(?!/))*\\*/\\s*)?" +
+          "private static final int\\s*\\[\\]\\s*" + fieldName + "\\s*=\\s*" + methodName + "\\(\\);\\s*");
+    }
+
+    @NotNull Pattern packedPattern() {
+      return Pattern.compile(
+          "private static final String " + fieldName + "_PACKED_(\\d+)\\s*=((?:\\s*\"(?:[^\"\\\\]|\\\\.)*\"\\s*\\+?)+);\\s*");
+    }
+
+    @NotNull Pattern referencePattern() {
+      return Pattern.compile("\\b" + fieldName + "\\b");
+    }
+
+    @NotNull List<Pattern> methodPatterns() {
+      return List.of(
+          Pattern.compile("private static int\\s*\\[\\]\\s*" + methodName + "\\(\\)\\s*"),
+          Pattern.compile("private static int " + methodName + "\\(String packed,"));
+    }
+
+    int @Nullable [] unpack(@NotNull String source) {
+      Matcher size = Pattern.compile(
+          "int\\s*\\[\\]\\s*" + methodName + "\\(\\)\\s*\\{\\s*int\\s*\\[\\]\\s*result\\s*=\\s*new int\\[(\\d+)\\];")
+          .matcher(source);
+      if (!size.find()) {
+        return null;
+      }
+      TreeMap<Integer, String> parts = new TreeMap<>();
+      Matcher packed = packedPattern().matcher(source);
+      while (packed.find()) {
+        parts.put(Integer.parseInt(packed.group(1)), decodeLiterals(packed.group(2)));
+      }
+      if (parts.isEmpty()) {
+        return null;
+      }
+      List<Integer> values = new ArrayList<>();
+      for (String part : parts.values()) {
+        if (!encoding.unpack(part, values)) {
+          return null;
+        }
+      }
+      if (values.size() != Integer.parseInt(size.group(1))) {
+        return null;
+      }
+      return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  private enum Encoding {
+    RUN_LENGTH {
+      @Override
+      boolean unpack(@NotNull String packed, @NotNull List<Integer> result) {
+        return unpackRunLength(packed, result, 0);
+      }
+    },
+    RUN_LENGTH_DECREMENTED {
+      @Override
+      boolean unpack(@NotNull String packed, @NotNull List<Integer> result) {
+        return unpackRunLength(packed, result, -1);
+      }
+    },
+    HIGH_LOW {
+      @Override
+      boolean unpack(@NotNull String packed, @NotNull List<Integer> result) {
+        if (packed.length() % 2 != 0) {
+          return false;
+        }
+        for (int i = 0; i < packed.length(); i += 2) {
+          result.add(packed.charAt(i) << 16 | packed.charAt(i + 1));
+        }
+        return true;
+      }
+    };
+
+    abstract boolean unpack(@NotNull String packed, @NotNull List<Integer> result);
+
+    private static boolean unpackRunLength(@NotNull String packed, @NotNull List<Integer> result, int delta) {
+      if (packed.length() % 2 != 0) {
+        return false;
+      }
+      for (int i = 0; i < packed.length(); i += 2) {
+        int count = packed.charAt(i);
+        int value = packed.charAt(i + 1) + delta;
+        do {
+          result.add(value);
+        }
+        while (--count > 0);
+      }
+      return true;
+    }
+  }
+}
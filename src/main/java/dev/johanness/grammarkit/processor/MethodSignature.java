@@ -0,0 +1,75 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.java.JavaHelper.MethodType;
+import org.jetbrains.annotations.NotNull;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.TypeMirror;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * What {@link MyJavaHelper} needs to know about a method to match it against
+ * a query of Grammar-Kit. Implemented by the methods of a {@link MethodTable},
+ * which are backed by javac, and of a {@link TypeSnapshot}.
+ */
+interface MethodSignature {
+  @NotNull ElementKind getKind();
+
+  @NotNull Set<Modifier> getModifiers();
+
+  boolean isVarArgs();
+
+  @NotNull List<? extends Parameter> getParameters();
+
+  /**
+   * Returns whether the method is of the given type. Abstract methods are
+   * never reported to Grammar-Kit.
+   */
+  default boolean is(@NotNull MethodType methodType) {
+    Set<Modifier> modifiers = getModifiers();
+    if (modifiers.contains(Modifier.ABSTRACT)) {
+      return false;
+    }
+    switch (methodType) {
+      case CONSTRUCTOR:
+        return getKind() == ElementKind.CONSTRUCTOR && !modifiers.contains(Modifier.PRIVATE);
+      case INSTANCE:
+        return getKind() == ElementKind.METHOD && !modifiers.contains(Modifier.STATIC);
+      case STATIC:
+        return getKind() == ElementKind.METHOD && modifiers.contains(Modifier.STATIC);
+      default:
+        return true;
+    }
+  }
+
+  interface Parameter {
+    @NotNull String getTypeName();
+
+    /**
+     * Must only be called by the thread of javac.
+     */
+    @NotNull TypeMirror getType();
+
+    /**
+     * Returns whether the type is available. Otherwise, the type can only
+     * be matched by its {@link #getCandidates() candidates}.
+     */
+    boolean isResolved();
+
+    /**
+     * Returns the candidates for the qualified name of the type, see
+     * {@link ImportIndex}.
+     */
+    @NotNull Collection<String> getCandidates();
+
+    /**
+     * Returns whether the given class is assignable to this parameter, as
+     * computed by the given function.
+     */
+    boolean isAssignableFrom(@NotNull String className, @NotNull Predicate<String> isAssignable);
+  }
+}
@@ -0,0 +1,138 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.java.JavaHelper.MethodType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.type.TypeMirror;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Methods of a class, including inherited methods, indexed by their
+ * {@link MethodType} and name.
+ */
+final class MethodTable {
+  private final Map<MethodType, List<Method>> methods = new EnumMap<>(MethodType.class);
+  private final Map<MethodType, Map<Name, List<Method>>> methodsByName = new EnumMap<>(MethodType.class);
+
+  MethodTable(@NotNull List<Method> allMethods) {
+    for (MethodType methodType : MethodType.values()) {
+      List<Method> list = new ArrayList<>();
+      Map<Name, List<Method>> map = new HashMap<>();
+      for (Method method : allMethods) {
+        if (method.is(methodType)) {
+          list.add(method);
+          map.computeIfAbsent(method.getName(), key -> new ArrayList<>(1)).add(method);
+        }
+      }
+      methods.put(methodType, list);
+      methodsByName.put(methodType, map);
+    }
+  }
+
+  /**
+   * Returns the methods of the given type.
+   *
+   * @param name name of the methods, or {@code null} for all methods
+   */
+  @NotNull List<Method> find(@NotNull MethodType methodType, @Nullable Name name) {
+    return name == null
+        ? methods.get(methodType)
+        : methodsByName.get(methodType).getOrDefault(name, Collections.emptyList());
+  }
+
+  static final class Method implements MethodSignature {
+    private final @NotNull ExecutableElement element;
+    private final @NotNull List<MethodTable.Parameter> parameters;
+
+    Method(@NotNull ExecutableElement element, @NotNull List<MethodTable.Parameter> parameters) {
+      this.element = element;
+      this.parameters = parameters;
+    }
+
+    @NotNull ExecutableElement getElement() {
+      return element;
+    }
+
+    @NotNull Name getName() {
+      return element.getSimpleName();
+    }
+
+    @Override
+    public @NotNull ElementKind getKind() {
+      return element.getKind();
+    }
+
+    @Override
+    public @NotNull Set<Modifier> getModifiers() {
+      return element.getModifiers();
+    }
+
+    @Override
+    public boolean isVarArgs() {
+      return element.isVarArgs();
+    }
+
+    @Override
+    public @NotNull List<MethodTable.Parameter> getParameters() {
+      return parameters;
+    }
+  }
+
+  static final class Parameter implements MethodSignature.Parameter {
+    private final @NotNull TypeMirror type;
+    private final @NotNull String typeName;
+    private final @Nullable Collection<String> candidates;
+
+    /**
+     * @param candidates candidates for the qualified name of the type if
+     *                   the type is not available, see {@link ImportIndex}
+     */
+    Parameter(@NotNull TypeMirror type, @Nullable Collection<String> candidates) {
+      this.type = type;
+      this.typeName = type.toString();
+      this.candidates = candidates;
+    }
+
+    @Override
+    public @NotNull TypeMirror getType() {
+      return type;
+    }
+
+    @Override
+    public @NotNull String getTypeName() {
+      return typeName;
+    }
+
+    @Override
+    public boolean isResolved() {
+      return candidates == null;
+    }
+
+    @Override
+    public @NotNull Collection<String> getCandidates() {
+      return candidates == null ? List.of(typeName) : candidates;
+    }
+
+    /**
+     * Not remembered, because the table is kept across rounds, in which
+     * the given class may become available.
+     */
+    @Override
+    public boolean isAssignableFrom(@NotNull String className, @NotNull Predicate<String> isAssignable) {
+      return isAssignable.test(className);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache for lookups in the {@link Elements} of a single compilation. The
+ * cache also interns the wrappers which are handed to Grammar-Kit. Negative
+ * results of lookups are cached as well.
+ *
+ * @param <W> type of the wrappers
+ */
+final class ModelCache<W> {
+  private final @NotNull Elements elements;
+  private final @NotNull Function<Element, W> wrapperFactory;
+
+  private final Map<String, Optional<TypeElement>> typeElements = new ConcurrentHashMap<>();
+  private final Map<String, Name> names = new ConcurrentHashMap<>();
+  private final Map<Element, W> wrappers = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  ModelCache(@NotNull Elements elements, @NotNull Function<Element, W> wrapperFactory) {
+    this.elements = elements;
+    this.wrapperFactory = wrapperFactory;
+  }
+
+  @Nullable TypeElement getTypeElement(@NotNull String name) {
+    return lookup(typeElements, name, key -> Optional.ofNullable(elements.getTypeElement(key)))
+        .orElse(null);
+  }
+
+  @NotNull Name getName(@NotNull String name) {
+    return lookup(names, name, elements::getName);
+  }
+
+  @NotNull W wrap(@NotNull Element element) {
+    return lookup(wrappers, element, wrapperFactory);
+  }
+
+  /**
+   * Clears the cache. Has to be called for every new round of the
+   * annotation processing, as javac does not reuse elements across rounds.
+   */
+  void clear() {
+    typeElements.clear();
+    names.clear();
+    wrappers.clear();
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  private <K, V> @NotNull V lookup(@NotNull Map<K, V> map, @NotNull K key, @NotNull Function<? super K, ? extends V> function) {
+    V value = map.get(key);
+    if (value != null) {
+      hits.increment();
+      return value;
+    }
+    else {
+      misses.increment();
+      return map.computeIfAbsent(key, function);
+    }
+  }
+}
@@ -6,7 +6,7 @@
 import com.intellij.psi.PsiReference;
 import com.intellij.psi.impl.FakePsiElement;
 import com.intellij.util.ProcessingContext;
-import com.sun.source.tree.ImportTree;
+import com.sun.source.util.TreePath;
 import com.sun.source.util.Trees;
 import org.intellij.grammar.java.JavaHelper;
 import org.jetbrains.annotations.Contract;
@@ -26,28 +26,194 @@
 import javax.lang.model.type.ErrorType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.SimpleElementVisitor9;
 import javax.lang.model.util.SimpleTypeVisitor9;
+import javax.lang.model.util.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+// Grammars may be generated by multiple threads at the same time. Queries
+// which are not answered by snapshots are run on the thread of javac, see
+// ProcessingThread.
 public final class MyJavaHelper extends JavaHelper {
-  private final ProcessingEnvironment processingEnv;
-  private final Trees trees;
+  private final Elements elements;
+  private final Types types;
+  // Null if the environment does not belong to javac. Imports of the
+  // psiImplUtilClass are not available for resolving types then.
+  private final @Nullable Trees trees;
+  private final ModelCache<MyElement> cache;
+  private final Map<Element, ImportIndex> importIndexes = new ConcurrentHashMap<>();
+  private final Map<TypeElement, MethodTable> methodTables = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+  private final ProcessingThread processingThread = new ProcessingThread();
+  private final ThreadLocal<Set<String>> queriedClasses = new ThreadLocal<>();
+  private final ThreadLocal<GeneratedClassIndex> generatedClasses = new ThreadLocal<>();
+  private final ThreadLocal<long[]> threadCalls = ThreadLocal.withInitial(() -> new long[1]);
+  // Replaced as a whole, so that it can be read without synchronization.
+  private volatile Map<String, TypeSnapshot> snapshots = Map.of();
 
   public MyJavaHelper(ProcessingEnvironment processingEnv) {
-    this.processingEnv = processingEnv;
-    this.trees = Trees.instance(processingEnv);
+    this(processingEnv.getElementUtils(), processingEnv.getTypeUtils(), ProcessingEnvironments.getTrees(processingEnv));
+  }
+
+  MyJavaHelper(Elements elements, Types types, @Nullable Trees trees) {
+    this.elements = elements;
+    this.types = types;
+    this.trees = trees;
+    this.cache = new ModelCache<>(elements, element -> new MyElement(this, element));
+  }
+
+  @NotNull ModelCache<?> getCache() {
+    return cache;
+  }
+
+  /**
+   * Returns the thread which created this helper. It is the only thread
+   * which accesses the processing environment.
+   */
+  @NotNull ProcessingThread getProcessingThread() {
+    return processingThread;
+  }
+
+  /**
+   * Returns how often each method of {@link JavaHelper} has been called.
+   */
+  @NotNull Map<String, Long> getCallCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    calls.forEach((method, count) -> result.put(method, count.sum()));
+    return result;
+  }
+
+  /**
+   * Returns how often the methods of {@link JavaHelper} have been called by
+   * the current thread.
+   */
+  long getCallCountOfCurrentThread() {
+    return threadCalls.get()[0];
+  }
+
+  void startRound() {
+    snapshots = Map.of();
+    cache.clear();
+    importIndexes.clear();
+    methodTables.clear();
+  }
+
+  /**
+   * Starts recording the names of all classes queried by the current thread.
+   * The names are added to the given set until {@link #stopRecording()} is
+   * called.
+   */
+  void startRecording(@NotNull Set<String> classNames) {
+    queriedClasses.set(classNames);
+  }
+
+  void stopRecording() {
+    queriedClasses.remove();
+  }
+
+  /**
+   * Sets the classes which are generated by the grammar of the current
+   * thread. Types which are not available yet are resolved to these
+   * classes if possible, instead of guessing from the imports.
+   */
+  void setGeneratedClasses(@Nullable GeneratedClassIndex index) {
+    if (index == null) {
+      generatedClasses.remove();
+    }
+    else {
+      generatedClasses.set(index);
+    }
+  }
+
+  /**
+   * Takes snapshots of the given classes and their supertypes. Must be
+   * called by the thread of javac. Queries about these classes are answered
+   * from the snapshots afterwards, without accessing javac. The snapshots
+   * are discarded by {@link #startRound()}.
+   */
+  void snapshot(@NotNull Collection<String> classNames) {
+    Map<String, TypeSnapshot> result = new HashMap<>(snapshots);
+    for (String className : classNames) {
+      TypeElement element = cache.getTypeElement(className);
+      if (element != null) {
+        snapshot(element, result);
+      }
+    }
+    snapshots = Map.copyOf(result);
+  }
+
+  @Nullable TypeElement getTypeElement(@NotNull String className) {
+    return onProcessingThread(() -> cache.getTypeElement(className));
+  }
+
+  /**
+   * Returns a description of everything this helper may report about the
+   * given class. The description changes whenever the generated code might
+   * change.
+   */
+  @NotNull String describeClass(@NotNull String className) {
+    return onProcessingThread(() -> describe(className));
+  }
+
+  private @NotNull String describe(@NotNull String className) {
+    TypeElement element = cache.getTypeElement(className);
+    if (element == null) {
+      return "<missing>";
+    }
+    // Uses the internals of the public methods, so that the calls are not
+    // counted as calls of Grammar-Kit.
+    TypeMirror superClass = getSuperClass(element);
+    StringBuilder builder = new StringBuilder();
+    builder.append(element.getKind()).append(' ')
+        .append(element.getModifiers()).append(' ')
+        .append(superClass == null ? null : resolveFirst(element, superClass)).append(' ')
+        .append(element.getInterfaces().stream()
+            .map(type -> resolveFirst(element, type))
+            .collect(Collectors.toList()))
+        .append('\n');
+    for (Element member : elements.getAllMembers(element)) {
+      if (member instanceof ExecutableElement) {
+        ExecutableElement method = (ExecutableElement) member;
+        builder.append(method.getKind()).append(' ')
+            .append(method.getModifiers()).append(' ')
+            .append(method.getSimpleName()).append(' ')
+            .append(method.isVarArgs()).append(' ')
+            .append(((TypeElement) method.getEnclosingElement()).getQualifiedName()).append(' ')
+            .append(getMethodTypes(method)).append(' ')
+            .append(method.getTypeParameters().stream()
+                .map(param -> param.getSimpleName() + param.getBounds().stream()
+                    .map(bound -> resolveFirst(param, bound))
+                    .collect(Collectors.toList()).toString())
+                .collect(Collectors.toList())).append(' ')
+            .append(getExceptionList(method))
+            .append('\n');
+      }
+    }
+    return builder.toString();
   }
 
   @Override
   public boolean isPublic(@Nullable NavigatablePsiElement element) {
-    return accept(element, new SimpleElementVisitor9<Boolean, Void>() {
+    countCall("isPublic");
+    if (element instanceof TypeSnapshot) {
+      return ((TypeSnapshot) element).isPublic();
+    }
+    else if (element instanceof TypeSnapshot.Method) {
+      return ((TypeSnapshot.Method) element).isPublic();
+    }
+    return onProcessingThread(() -> accept(element, new SimpleElementVisitor9<Boolean, Void>() {
       @Override
       public Boolean visitType(TypeElement e, Void unused) {
         return e.getModifiers().contains(Modifier.PUBLIC);
@@ -62,13 +228,24 @@ public Boolean visitExecutable(ExecutableElement e, Void unused) {
       protected Boolean defaultAction(Element e, Void unused) {
         return false;
       }
-    }, null);
+    }, null));
   }
 
   @Override
   public @Nullable NavigatablePsiElement findClass(@Nullable String className) {
-    TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
-    return element == null ? null : new MyElement(element);
+    countCall("findClass");
+    recordQuery(className);
+    if (className == null) {
+      return null;
+    }
+    TypeSnapshot snapshot = snapshots.get(className);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    return onProcessingThread(() -> {
+      TypeElement element = cache.getTypeElement(className);
+      return element == null ? null : cache.wrap(element);
+    });
   }
 
   @Override
@@ -76,71 +253,102 @@ protected Boolean defaultAction(Element e, Void unused) {
       @Nullable String className,
       @NotNull MethodType methodType, @Nullable String methodName,
       int paramCount, String... paramTypes) {
+    countCall("findClassMethods");
+    recordQuery(className);
     if (className == null || methodName == null) {
       return Collections.emptyList();
     }
-    else {
-      TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+    TypeSnapshot snapshot = snapshots.get(className);
+    if (snapshot != null) {
+      List<NavigatablePsiElement> result = new ArrayList<>();
+      for (TypeSnapshot.Method method : snapshot.findMethods(methodType, "*".equals(methodName) ? null : methodName)) {
+        if (matchParameters(paramCount, paramTypes, method)) {
+          result.add(method);
+        }
+      }
+      return result;
+    }
+    return onProcessingThread(() -> {
+      TypeElement element = cache.getTypeElement(className);
       if (element == null) {
-        return Collections.emptyList();
+        return Collections.<NavigatablePsiElement>emptyList();
       }
       else {
-        return processingEnv.getElementUtils().getAllMembers(element).stream()
-            .filter(e -> matches(methodType, methodName, paramCount, paramTypes, e))
-            .map(MyElement::new)
-            .collect(Collectors.toList());
+        Name expectedName = "*".equals(methodName) ? null : cache.getName(methodName);
+        List<NavigatablePsiElement> result = new ArrayList<>();
+        for (MethodTable.Method method : getMethodTable(element).find(methodType, expectedName)) {
+          if (matchParameters(paramCount, paramTypes, method)) {
+            result.add(cache.wrap(method.getElement()));
+          }
+        }
+        return result;
       }
-    }
+    });
   }
 
   @Override
   public @Nullable String getSuperClassName(@Nullable String className) {
+    countCall("getSuperClassName");
+    recordQuery(className);
     if (className == null) {
       return null;
     }
-    else {
-      TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+    TypeSnapshot snapshot = snapshots.get(className);
+    if (snapshot != null) {
+      Collection<String> superClass = snapshot.getSuperClass();
+      return superClass == null ? null : first(superClass);
+    }
+    return onProcessingThread(() -> {
+      TypeElement element = cache.getTypeElement(className);
       if (element == null) {
         return null;
       }
-      if (element.getKind() == ElementKind.INTERFACE ||
-          element.getKind() == ElementKind.ANNOTATION_TYPE) {
-        return "java.lang.Object";
-      }
-      else {
-        TypeMirror superClass = element.getSuperclass();
-        return superClass.getKind() == TypeKind.NONE
-            ? null
-            : resolveFirst(element, superClass);
-      }
-    }
+      TypeMirror superClass = getSuperClass(element);
+      return superClass == null ? null : resolveFirst(element, superClass);
+    });
   }
 
   @Override
   public @NotNull List<String> getMethodTypes(@Nullable NavigatablePsiElement method) {
-    return accept(method, new SimpleElementVisitor9<List<String>, Void>() {
+    countCall("getMethodTypes");
+    if (method instanceof TypeSnapshot.Method) {
+      TypeSnapshot.Method snapshot = (TypeSnapshot.Method) method;
+      List<String> result = new ArrayList<>();
+      result.add(first(snapshot.getReturnType()));
+      for (TypeSnapshot.Parameter param : snapshot.getParameters()) {
+        result.add(first(param.getCandidates()));
+        result.add(param.getName());
+      }
+      return result;
+    }
+    return onProcessingThread(() -> accept(method, new SimpleElementVisitor9<List<String>, Void>() {
       @Override
       public List<String> visitExecutable(ExecutableElement e, Void unused) {
-        List<String> result = new ArrayList<>();
-        result.add(resolveFirst(e, e.getReturnType()));
-        for (int i = 0; i < e.getParameters().size(); ++i) {
-          VariableElement param = e.getParameters().get(i);
-          result.add(resolveFirst(e, param.asType()));
-          result.add(param.getSimpleName().toString());
-        }
-        return result;
+        return getMethodTypes(e);
       }
 
       @Override
       protected List<String> defaultAction(Element e, Void unused) {
         return Collections.emptyList();
       }
-    }, null);
+    }, null));
   }
 
   @Override
   public List<TypeParameterInfo> getGenericParameters(NavigatablePsiElement method) {
-    return accept(method, new SimpleElementVisitor9<List<TypeParameterInfo>, Void>() {
+    countCall("getGenericParameters");
+    if (method instanceof TypeSnapshot.Method) {
+      List<TypeParameterInfo> result = new ArrayList<>();
+      for (TypeSnapshot.TypeParameter typeParameter : ((TypeSnapshot.Method) method).getTypeParameters()) {
+        TypeParameterInfo info = newTypeParameterInfo(typeParameter.getName());
+        for (Collection<String> bound : typeParameter.getBounds()) {
+          info.getExtendsList().add(first(bound));
+        }
+        result.add(info);
+      }
+      return result;
+    }
+    return onProcessingThread(() -> accept(method, new SimpleElementVisitor9<List<TypeParameterInfo>, Void>() {
       @Override
       public List<TypeParameterInfo> visitExecutable(ExecutableElement e, Void unused) {
         return e.getTypeParameters().stream()
@@ -152,29 +360,37 @@ public List<TypeParameterInfo> visitExecutable(ExecutableElement e, Void unused)
       protected List<TypeParameterInfo> defaultAction(Element e, Void unused) {
         return Collections.emptyList();
       }
-    }, null);
+    }, null));
   }
 
   @Override
   public List<String> getExceptionList(NavigatablePsiElement method) {
-    return accept(method, new SimpleElementVisitor9<List<String>, Void>() {
+    countCall("getExceptionList");
+    if (method instanceof TypeSnapshot.Method) {
+      return ((TypeSnapshot.Method) method).getThrownTypes().stream()
+          .map(this::first)
+          .collect(Collectors.toList());
+    }
+    return onProcessingThread(() -> accept(method, new SimpleElementVisitor9<List<String>, Void>() {
       @Override
       public List<String> visitExecutable(ExecutableElement e, Void unused) {
-        return e.getThrownTypes().stream()
-            .map(type -> resolveFirst(e, type))
-            .collect(Collectors.toList());
+        return getExceptionList(e);
       }
 
       @Override
       protected List<String> defaultAction(Element e, Void unused) {
         return Collections.emptyList();
       }
-    }, null);
+    }, null));
   }
 
   @Override
   public @NotNull String getDeclaringClass(@Nullable NavigatablePsiElement method) {
-    return accept(method, new SimpleElementVisitor9<String, Void>() {
+    countCall("getDeclaringClass");
+    if (method instanceof TypeSnapshot.Method) {
+      return ((TypeSnapshot.Method) method).getDeclaringClass().getQualifiedName();
+    }
+    return onProcessingThread(() -> accept(method, new SimpleElementVisitor9<String, Void>() {
       @Override
       public String visitExecutable(ExecutableElement e, Void unused) {
         return e.accept(new SimpleElementVisitor9<String, Void>() {
@@ -194,62 +410,55 @@ protected String defaultAction(Element e, Void unused) {
       protected String defaultAction(Element e, Void unused) {
         return "";
       }
-    }, null);
+    }, null));
   }
 
   @Override
   public @NotNull List<String> getAnnotations(@Nullable NavigatablePsiElement element) {
+    countCall("getAnnotations");
     return Collections.emptyList();
   }
 
   @Override
   public @NotNull List<String> getParameterAnnotations(@Nullable NavigatablePsiElement method, int paramIndex) {
+    countCall("getParameterAnnotations");
     return Collections.emptyList();
   }
 
   @Override
   public @NotNull PsiReference[] getClassReferences(@NotNull PsiElement element, @NotNull ProcessingContext context) {
+    countCall("getClassReferences");
     return PsiReference.EMPTY_ARRAY;
   }
 
   @Override
   public @Nullable NavigationItem findPackage(@Nullable String packageName) {
+    countCall("findPackage");
     return null;
   }
 
-  private boolean matches(
-      @NotNull MethodType methodType, @NotNull String methodName,
-      int paramCount, String @NotNull [] paramTypes,
-      @NotNull Element element)
-  {
-    return element.accept(new SimpleElementVisitor9<Boolean, Void>() {
-      @Override
-      public Boolean visitExecutable(ExecutableElement e, Void o) {
-        Name expectedName = processingEnv.getElementUtils().getName(methodName);
-        return !e.getModifiers().contains(Modifier.ABSTRACT) &&
-               (methodType != MethodType.CONSTRUCTOR || e.getKind() == ElementKind.CONSTRUCTOR) &&
-               (methodType != MethodType.CONSTRUCTOR || !e.getModifiers().contains(Modifier.PRIVATE)) &&
-               (methodType != MethodType.INSTANCE || e.getKind() == ElementKind.METHOD) &&
-               (methodType != MethodType.INSTANCE || !e.getModifiers().contains(Modifier.STATIC)) &&
-               (methodType != MethodType.STATIC || e.getKind() == ElementKind.METHOD) &&
-               (methodType != MethodType.STATIC || e.getModifiers().contains(Modifier.STATIC)) &&
-               ("*".equals(methodName) || e.getSimpleName().equals(expectedName)) &&
-               matchParameters(paramCount, paramTypes, e);
-      }
+  private @NotNull List<String> getMethodTypes(@NotNull ExecutableElement method) {
+    List<String> result = new ArrayList<>();
+    result.add(resolveFirst(method, method.getReturnType()));
+    for (VariableElement param : method.getParameters()) {
+      result.add(resolveFirst(method, param.asType()));
+      result.add(param.getSimpleName().toString());
+    }
+    return result;
+  }
 
-      @Override
-      protected Boolean defaultAction(Element e, Void o) {
-        return false;
-      }
-    }, null);
+  private @NotNull List<String> getExceptionList(@NotNull ExecutableElement method) {
+    return method.getThrownTypes().stream()
+        .map(type -> resolveFirst(method, type))
+        .collect(Collectors.toList());
   }
 
   private boolean matchParameters(
       int paramCount, String @NotNull [] paramTypes,
-      @NotNull ExecutableElement method)
+      @NotNull MethodSignature method)
   {
     boolean varArgs = method.isVarArgs();
-    List<? extends VariableElement> parameters = method.getParameters();
+    List<? extends MethodSignature.Parameter> parameters = method.getParameters();
     if (paramCount >= 0 && !varArgs && paramCount != parameters.size() ||
         paramCount >= 0 && paramCount < parameters.size() - 1 ||
         parameters.size() < paramTypes.length) {
@@ -257,75 +466,185 @@ private boolean matchParameters(
     }
     for (int i = 0; i < paramTypes.length; ++i) {
       String expectedType = paramTypes[i];
-      VariableElement parameter = parameters.get(i);
-      TypeMirror parameterType = parameter.asType();
       if (!"*".equals(expectedType) &&
-          !isAssignable(method, expectedType, parameterType)) {
+          !isAssignable(expectedType, parameters.get(i))) {
         return false;
       }
     }
     return true;
   }
 
-  private boolean isAssignable(
-      @NotNull ExecutableElement context,
-      @NotNull String from, @NotNull TypeMirror to)
-  {
-    return to.accept(new SimpleTypeVisitor9<Boolean, Void>() {
-      @Override
-      public Boolean visitError(ErrorType t, Void unused) {
-        return resolve(context, t).stream()
-            .anyMatch(from::equals);
-      }
+  private boolean isAssignable(@NotNull String from, @NotNull MethodSignature.Parameter to) {
+    if (!to.isResolved()) {
+      return narrow(to.getCandidates()).contains(from);
+    }
+    else if (to.getTypeName().equals(from)) {
+      return true;
+    }
+    else {
+      recordQuery(from);
+      return to.isAssignableFrom(from, className -> onProcessingThread(() -> {
+        TypeElement fromElement = cache.getTypeElement(className);
+        return fromElement != null &&
+               types.isAssignable(fromElement.asType(), to.getType());
+      }));
+    }
+  }
 
-      @Override
-      protected Boolean defaultAction(TypeMirror e, Void unused) {
-        if (e.toString().equals(from)) {
-          return true;
-        }
-        else {
-          TypeElement fromElement = processingEnv.getElementUtils()
-              .getTypeElement(from);
-          return fromElement != null &&
-                 processingEnv.getTypeUtils().isAssignable(fromElement.asType(), e);
+  private @NotNull MethodTable getMethodTable(@NotNull TypeElement type) {
+    return methodTables.computeIfAbsent(type, key -> {
+      List<MethodTable.Method> methods = new ArrayList<>();
+      for (Element member : elements.getAllMembers(type)) {
+        if (member instanceof ExecutableElement) {
+          ExecutableElement method = (ExecutableElement) member;
+          List<MethodTable.Parameter> parameters = new ArrayList<>(method.getParameters().size());
+          for (VariableElement parameter : method.getParameters()) {
+            TypeMirror parameterType = parameter.asType();
+            parameters.add(new MethodTable.Parameter(
+                parameterType,
+                parameterType.getKind() == TypeKind.ERROR ? resolve(method, parameterType) : null));
+          }
+          methods.add(new MethodTable.Method(method, parameters));
         }
       }
-    }, null);
+      return new MethodTable(methods);
+    });
+  }
+
+  private @NotNull TypeSnapshot snapshot(@NotNull TypeElement element, @NotNull Map<String, TypeSnapshot> result) {
+    String className = element.getQualifiedName().toString();
+    TypeSnapshot existing = result.get(className);
+    if (existing != null) {
+      return existing;
+    }
+    // Supertypes first, so that inherited methods can refer to the
+    // snapshots of the classes which declare them.
+    for (TypeMirror supertype : types.directSupertypes(element.asType())) {
+      Element superElement = types.asElement(supertype);
+      if (superElement instanceof TypeElement) {
+        snapshot((TypeElement) superElement, result);
+      }
+    }
+    TypeMirror superClass = getSuperClass(element);
+    TypeSnapshot snapshot = new TypeSnapshot(
+        className,
+        element.getKind(),
+        element.getModifiers(),
+        superClass == null ? null : resolve(element, superClass),
+        owner -> {
+          List<TypeSnapshot.Method> methods = new ArrayList<>();
+          for (Element member : elements.getAllMembers(element)) {
+            if (member instanceof ExecutableElement) {
+              ExecutableElement method = (ExecutableElement) member;
+              TypeElement declaringElement = (TypeElement) method.getEnclosingElement();
+              TypeSnapshot declaringClass = declaringElement.equals(element)
+                  ? owner
+                  : result.get(declaringElement.getQualifiedName().toString());
+              methods.add(snapshot(method, declaringClass != null ? declaringClass : owner));
+            }
+          }
+          return methods;
+        });
+    result.put(className, snapshot);
+    return snapshot;
+  }
+
+  private @NotNull TypeSnapshot.Method snapshot(@NotNull ExecutableElement method, @NotNull TypeSnapshot declaringClass) {
+    List<TypeSnapshot.Parameter> parameters = new ArrayList<>(method.getParameters().size());
+    for (VariableElement parameter : method.getParameters()) {
+      TypeMirror type = parameter.asType();
+      parameters.add(new TypeSnapshot.Parameter(
+          parameter.getSimpleName().toString(),
+          type.toString(),
+          type,
+          resolve(method, type),
+          type.getKind() != TypeKind.ERROR));
+    }
+    List<TypeSnapshot.TypeParameter> typeParameters = new ArrayList<>(method.getTypeParameters().size());
+    for (TypeParameterElement typeParameter : method.getTypeParameters()) {
+      typeParameters.add(new TypeSnapshot.TypeParameter(
+          typeParameter.getSimpleName().toString(),
+          typeParameter.getBounds().stream()
+              .map(bound -> resolve(typeParameter, bound))
+              .collect(Collectors.toList())));
+    }
+    return new TypeSnapshot.Method(
+        declaringClass,
+        method.getSimpleName().toString(),
+        method.getKind(),
+        method.getModifiers(),
+        method.isVarArgs(),
+        resolve(method, method.getReturnType()),
+        parameters,
+        typeParameters,
+        method.getThrownTypes().stream()
+            .map(type -> resolve(method, type))
+            .collect(Collectors.toList()));
+  }
+
+  private @Nullable TypeMirror getSuperClass(@NotNull TypeElement element) {
+    if (element.getKind() == ElementKind.INTERFACE ||
+        element.getKind() == ElementKind.ANNOTATION_TYPE) {
+      return elements.getTypeElement("java.lang.Object").asType();
+    }
+    TypeMirror superClass = element.getSuperclass();
+    return superClass.getKind() == TypeKind.NONE ? null : superClass;
+  }
+
+  private void countCall(@NotNull String method) {
+    calls.computeIfAbsent(method, key -> new LongAdder()).increment();
+    threadCalls.get()[0] += 1;
+  }
+
+  /**
+   * Runs the given query on the thread of javac. The classes queried there
+   * are recorded for the grammar of the current thread, and its generated
+   * classes are used for resolving types.
+   */
+  private <T> T onProcessingThread(@NotNull Supplier<T> query) {
+    if (processingThread.isCurrent()) {
+      return query.get();
+    }
+    Set<String> classNames = queriedClasses.get();
+    GeneratedClassIndex index = generatedClasses.get();
+    return processingThread.call(() -> {
+      queriedClasses.set(classNames);
+      generatedClasses.set(index);
+      try {
+        return query.get();
+      }
+      finally {
+        queriedClasses.remove();
+        generatedClasses.remove();
+      }
+    });
+  }
+
+  private void recordQuery(@Nullable String className) {
+    Set<String> classNames = queriedClasses.get();
+    if (classNames != null && className != null) {
+      classNames.add(className);
+    }
   }
 
   private @NotNull String resolveFirst(@NotNull Element context, @NotNull TypeMirror type) {
-    return resolve(context, type).stream().findFirst().orElseThrow();
+    return narrow(resolve(context, type)).stream().findFirst().orElseThrow();
+  }
+
+  private @NotNull String first(@NotNull Collection<String> candidates) {
+    return narrow(candidates).stream().findFirst().orElseThrow();
+  }
+
+  private @NotNull Collection<String> narrow(@NotNull Collection<String> candidates) {
+    GeneratedClassIndex index = generatedClasses.get();
+    return index == null || candidates.size() < 2 ? candidates : index.narrow(candidates);
   }
 
   private @NotNull Collection<String> resolve(@NotNull Element context, @NotNull TypeMirror type) {
     return type.accept(new SimpleTypeVisitor9<Collection<String>, Void>() {
       @Override
       public Collection<String> visitError(ErrorType t, Void unused) {
-        String typeName = t.toString();
-        String[] typeParts = typeName.split("\\.", 2);
-        List<String> specific = getImports(context, typeParts[0])
-            .collect(Collectors.toUnmodifiableList());
-        if (specific.isEmpty()) {
-          String pkg = processingEnv.getElementUtils().getPackageOf(context)
-              .getQualifiedName().toString();
-          return Stream
-              .concat(
-                  pkg.isEmpty()
-                      ? Stream.of(typeName)
-                      : Stream.of(typeName, pkg + "." + typeName),
-                  getImports(context, "*")
-                      .map(im -> im.replace("*", typeName)))
-              .collect(Collectors.toUnmodifiableList());
-        }
-        else if (typeParts.length > 1) {
-          assert typeParts.length == 2;
-          return specific.stream()
-              .map(im -> im + "." + typeParts[1])
-              .collect(Collectors.toUnmodifiableList());
-        }
-        else {
-          return specific;
-        }
+        return getImportIndex(context).resolve(t.toString());
       }
 
       @Override
@@ -335,22 +654,32 @@ protected Collection<String> defaultAction(TypeMirror e, Void unused) {
     }, null);
   }
 
-  private @NotNull Stream<String> getImports(@NotNull Element context, @NotNull String name) {
-    return trees.getPath(context).getCompilationUnit().getImports().stream()
-        .filter(Predicate.not(ImportTree::isStatic))
-        .map(im -> im.getQualifiedIdentifier().toString())
-        .filter(im -> im.endsWith("." + name));
+  private @NotNull ImportIndex getImportIndex(@NotNull Element context) {
+    Element outermost = context;
+    while (outermost.getEnclosingElement() != null &&
+           outermost.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+      outermost = outermost.getEnclosingElement();
+    }
+    return importIndexes.computeIfAbsent(outermost, element -> {
+      String pkg = elements.getPackageOf(element)
+          .getQualifiedName().toString();
+      TreePath path = trees == null ? null : trees.getPath(element);
+      return ImportIndex.of(pkg, path == null ? null : path.getCompilationUnit());
+    });
   }
 
   private @NotNull TypeParameterInfo toTypeParameterInfo(@NotNull TypeParameterElement typeParameter) {
+    TypeParameterInfo info = newTypeParameterInfo(typeParameter.getSimpleName().toString());
+    for (TypeMirror bounds : typeParameter.getBounds()) {
+      info.getExtendsList().add(resolveFirst(typeParameter, bounds));
+    }
+    return info;
+  }
+
+  private static @NotNull TypeParameterInfo newTypeParameterInfo(@NotNull String parameterName) {
     try {
-      String parameterName = typeParameter.getSimpleName().toString();
-      TypeParameterInfo info = TypeParameterInfo.class.getConstructor(String.class)
+      return TypeParameterInfo.class.getConstructor(String.class)
           .newInstance(parameterName);
-      for (TypeMirror bounds : typeParameter.getBounds()) {
-        info.getExtendsList().add(resolveFirst(typeParameter, bounds));
-      }
-      return info;
     }
     catch (ReflectiveOperationException e) {
       throw new IllegalStateException(e);
@@ -379,15 +708,20 @@ private static <R, P> R accept(
   }
 
   private static class MyElement extends FakePsiElement implements NavigatablePsiElement {
+    final MyJavaHelper helper;
     final Element delegate;
 
-    private MyElement(Element delegate) {
+    private MyElement(MyJavaHelper helper, Element delegate) {
+      this.helper = helper;
       this.delegate = delegate;
     }
 
     @Override
     public PsiElement getParent() {
-      return new MyElement(delegate.getEnclosingElement());
+      return helper.onProcessingThread(() -> {
+        Element parent = delegate.getEnclosingElement();
+        return parent == null ? null : helper.cache.wrap(parent);
+      });
     }
 
     @Override
@@ -0,0 +1,158 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves allocations out of the methods of generated parsers. Calls of
+ * {@code GeneratedParserUtilBase} with multiple tokens, like
+ * {@code nextTokenIs(b, "<rule>", A, B)}, create a new array for the
+ * variable arguments on every call. The optimizer replaces the arguments
+ * by an array in a {@code static final} field. {@code TokenSet.create(...)}
+ * within methods is replaced the same way. Identical arrays and sets share
+ * the same field across the parsers of a grammar. The field is declared by
+ * the first parser which uses it, and referenced by the other parsers of
+ * the same package. Parsers in other packages declare their own field.
+ */
+final class ParserOptimizer {
+  private static final String IDENTIFIER = "[A-Za-z_$][\\w$]*(?:\\.[A-Za-z_$][\\w$]*)*";
+  private static final String TOKENS = "(" + IDENTIFIER + "(?:, " + IDENTIFIER + ")+)";
+
+  // Groups: 1 = method and fixed arguments, 2 = tokens
+  private static final Pattern VARARGS_CALL = Pattern.compile(
+      "\\b((?:nextTokenIs\\(\\w+, \"(?:[^\"\\\\]|\\\\.)*\"" +
+      "|nextTokenIsFast\\(\\w+" +
+      "|nextTokenIsSmart\\(\\w+" +
+      "|consumeTokens\\(\\w+, \\d+" +
+      "|consumeTokensSmart\\(\\w+, \\d+), )" + TOKENS + "\\)");
+  // Groups: 1 = tokens
+  private static final Pattern TOKEN_SET_CREATE = Pattern.compile(
+      "\\bTokenSet\\.create\\(" + TOKENS + "\\)");
+  // Groups: 1 = name of the top-level class
+  private static final Pattern CLASS_DECLARATION = Pattern.compile(
+      "^(?:public |final |abstract )*class (\\w+)\\b[^{]*\\{", Pattern.MULTILINE);
+
+  private final @NotNull Map<String, Map<String, String>> tokenArrays = new HashMap<>();
+  private final @NotNull Map<String, Map<String, String>> tokenSets = new HashMap<>();
+  private int fieldCount;
+
+  private ParserOptimizer() {}
+
+  /**
+   * Returns a sink which optimizes the sources of parsers before they are
+   * written into the given sink. The sink must only be used for the
+   * sources of one grammar.
+   */
+  static @NotNull SourceSink wrap(@NotNull SourceSink sink) {
+    ParserOptimizer optimizer = new ParserOptimizer();
+    return (className, originatingClasses) -> new StringWriter() {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          try (Writer writer = sink.openSource(className, originatingClasses)) {
+            writer.write(optimizer.optimize(className, toString()));
+          }
+        }
+      }
+    };
+  }
+
+  synchronized @NotNull String optimize(@NotNull String className, @NotNull String source) {
+    if (!source.contains("GeneratedParserUtilBase")) {
+      return source;
+    }
+    int lastDot = className.lastIndexOf('.');
+    String packageName = lastDot < 0 ? "" : className.substring(0, lastDot);
+    String simpleName = className.substring(lastDot + 1);
+    Matcher declaration = CLASS_DECLARATION.matcher(source);
+    if (!declaration.find() || !simpleName.equals(declaration.group(1))) {
+      return source;
+    }
+    Map<String, String> packageArrays = tokenArrays.computeIfAbsent(packageName, key -> new HashMap<>());
+    Map<String, String> packageSets = tokenSets.computeIfAbsent(packageName, key -> new HashMap<>());
+    Map<String, String> newArrays = new LinkedHashMap<>();
+    Map<String, String> newSets = new LinkedHashMap<>();
+
+    StringBuilder body = new StringBuilder(source.length());
+    for (String line : source.substring(declaration.end()).split("(?<=\n)")) {
+      if (line.contains(" static final ")) {
+        // Initializers of fields are only executed once.
+        body.append(line);
+        continue;
+      }
+      line = replace(line, VARARGS_CALL, matcher -> matcher.group(1) +
+          field(packageArrays, newArrays, matcher.group(2), "TOKENS_", simpleName) + ")");
+      line = replace(line, TOKEN_SET_CREATE, matcher ->
+          field(packageSets, newSets, matcher.group(1), "TOKEN_SET_", simpleName));
+      body.append(line);
+    }
+
+    StringBuilder fields = new StringBuilder();
+    for (Map.Entry<String, String> entry : newArrays.entrySet()) {
+      fields.append("  static final com.intellij.psi.tree.IElementType[] ")
+          .append(entry.getValue()).append(" = {").append(entry.getKey()).append("};\n");
+    }
+    for (Map.Entry<String, String> entry : newSets.entrySet()) {
+      fields.append("  static final com.intellij.psi.tree.TokenSet ")
+          .append(entry.getValue()).append(" = com.intellij.psi.tree.TokenSet.create(")
+          .append(entry.getKey()).append(");\n");
+    }
+    if (fields.length() > 0) {
+      // The fields go to the top of the body of the top-level class.
+      fields.insert(0, '\n').setLength(fields.length() - 1);
+    }
+    return source.substring(0, declaration.end()) + fields + body;
+  }
+
+  /**
+   * Returns the reference to the field for the given tokens. If no parser
+   * of the package has declared the field yet, it is added to the fields
+   * to be declared by the current parser.
+   */
+  private @NotNull String field(
+      @NotNull Map<String, String> packageFields,
+      @NotNull Map<String, String> newFields,
+      @NotNull String tokens,
+      @NotNull String prefix,
+      @NotNull String simpleName)
+  {
+    String field = newFields.get(tokens);
+    if (field != null) {
+      return field;
+    }
+    String reference = packageFields.get(tokens);
+    if (reference != null) {
+      return reference;
+    }
+    field = prefix + fieldCount++ + "_";
+    newFields.put(tokens, field);
+    packageFields.put(tokens, simpleName + "." + field);
+    return field;
+  }
+
+  private static @NotNull String replace(
+      @NotNull String line,
+      @NotNull Pattern pattern,
+      @NotNull Function<Matcher, String> replacement)
+  {
+    Matcher matcher = pattern.matcher(line);
+    StringBuilder result = new StringBuilder();
+    while (matcher.find()) {
+      matcher.appendReplacement(result, Matcher.quoteReplacement(replacement.apply(matcher)));
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+}
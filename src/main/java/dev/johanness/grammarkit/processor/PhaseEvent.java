@@ -0,0 +1,20 @@
+package dev.johanness.grammarkit.processor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dev.johanness.grammarkit.Phase")
+@Label("Grammar-Kit Phase")
+@Description("Phase of the Grammar-Kit annotation processor")
+@Category("Grammar-Kit")
+final class PhaseEvent extends Event {
+  @Label("Phase")
+  String phase;
+
+  @Label("Grammar")
+  @Description("BNF file processed within this phase, if any")
+  String grammar;
+}
@@ -0,0 +1,57 @@
+package dev.johanness.grammarkit.processor;
+
+import com.sun.source.util.Trees;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+final class ProcessingEnvironments {
+  private static final int MAX_WRAPPERS = 4;
+
+  private ProcessingEnvironments() {}
+
+  /**
+   * Returns {@link Trees} for the given environment, or {@code null} if
+   * the environment does not belong to javac. Gradle wraps the environment
+   * of incremental processors, which hides it from {@link Trees#instance}.
+   * The environment of javac is then taken from the wrapper. It is only
+   * used for the syntax trees, all files are still created through the
+   * wrapped {@link javax.annotation.processing.Filer}.
+   */
+  static @Nullable Trees getTrees(@NotNull ProcessingEnvironment processingEnv) {
+    ProcessingEnvironment current = processingEnv;
+    for (int i = 0; current != null && i <= MAX_WRAPPERS; ++i) {
+      try {
+        return Trees.instance(current);
+      }
+      catch (IllegalArgumentException e) {
+        current = getWrapped(current);
+      }
+    }
+    return null;
+  }
+
+  private static @Nullable ProcessingEnvironment getWrapped(@NotNull ProcessingEnvironment wrapper) {
+    for (Class<?> clazz = wrapper.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+      for (Field field : clazz.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers()) &&
+            ProcessingEnvironment.class.isAssignableFrom(field.getType()) &&
+            field.trySetAccessible()) {
+          try {
+            Object wrapped = field.get(wrapper);
+            if (wrapped != null && wrapped != wrapper) {
+              return (ProcessingEnvironment) wrapped;
+            }
+          }
+          catch (IllegalAccessException e) {
+            // Continue with the next field
+          }
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,107 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * The thread of javac, which is the only thread allowed to access the
+ * processing environment. Worker threads hand their queries to this
+ * thread, which runs them while it waits for the workers in
+ * {@link #serveUntilDone(Collection)}. Queries of other threads at any
+ * other time fail with an {@link IllegalStateException}.
+ */
+final class ProcessingThread {
+  private static final Runnable WAKE_UP = () -> {};
+
+  private final @NotNull Thread owner = Thread.currentThread();
+  private final @NotNull BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+  private volatile boolean serving;
+
+  boolean isCurrent() {
+    return Thread.currentThread() == owner;
+  }
+
+  /**
+   * Runs the given task on the thread of javac and waits for its result.
+   */
+  <T> T call(@NotNull Supplier<T> task) {
+    if (isCurrent()) {
+      return task.get();
+    }
+    else if (!serving) {
+      throw new IllegalStateException(
+          "javac accessed by " + Thread.currentThread().getName() + " outside of serveUntilDone");
+    }
+    FutureTask<T> future = new FutureTask<>(task::get);
+    tasks.add(future);
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for the thread of javac");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      else {
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  /**
+   * Submits a job to the given executor, which wakes up
+   * {@link #serveUntilDone(Collection)} when it is done.
+   */
+  <T> @NotNull Future<T> submit(@NotNull Executor executor, @NotNull Callable<T> job) {
+    FutureTask<T> future = new FutureTask<>(job) {
+      @Override
+      protected void done() {
+        tasks.add(WAKE_UP);
+      }
+    };
+    executor.execute(future);
+    return future;
+  }
+
+  /**
+   * Runs the queries of the workers until all the given jobs are done. The
+   * jobs must have been submitted with {@link #submit(Executor, Callable)}.
+   */
+  void serveUntilDone(@NotNull Collection<? extends Future<?>> jobs) throws InterruptedException {
+    if (!isCurrent()) {
+      throw new IllegalStateException("Not the thread of javac: " + Thread.currentThread().getName());
+    }
+    serving = true;
+    try {
+      while (!jobs.stream().allMatch(Future::isDone)) {
+        tasks.take().run();
+      }
+    }
+    finally {
+      serving = false;
+      // Only left if the wait was interrupted
+      for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+        if (task instanceof Future) {
+          ((Future<?>) task).cancel(false);
+        }
+      }
+    }
+  }
+}
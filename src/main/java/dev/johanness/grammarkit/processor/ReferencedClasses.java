@@ -0,0 +1,42 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the classes a BNF file refers to by the attributes
+ * {@code psiImplUtilClass}, {@code mixin}, {@code extends} and
+ * {@code implements}. Grammar-Kit queries these classes and their
+ * supertypes through the {@link MyJavaHelper}. The file is scanned as text,
+ * so that no IntelliJ classes are needed. Only qualified names are
+ * returned, as other values usually refer to rules.
+ */
+final class ReferencedClasses {
+  private static final Pattern ATTRIBUTE = Pattern.compile(
+      "\\b(?:psiImplUtilClass|mixin|extends|implements)(?:\\s*\\([^)]*\\))?\\s*=\\s*" +
+      "(\\[[^\\]]*]|\"[^\"]*\"|'[^']*')");
+  private static final Pattern STRING = Pattern.compile("\"([^\"]*)\"|'([^']*)'");
+  private static final String IDENTIFIER = "\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*";
+  private static final Pattern QUALIFIED_NAME = Pattern.compile(IDENTIFIER + "(?:\\." + IDENTIFIER + ")+");
+
+  private ReferencedClasses() {}
+
+  static @NotNull Set<String> scan(@NotNull CharSequence bnf) {
+    Set<String> result = new LinkedHashSet<>();
+    Matcher attribute = ATTRIBUTE.matcher(bnf);
+    while (attribute.find()) {
+      Matcher string = STRING.matcher(attribute.group(1));
+      while (string.find()) {
+        String value = string.group(1) != null ? string.group(1) : string.group(2);
+        if (QUALIFIED_NAME.matcher(value.strip()).matches()) {
+          result.add(value.strip());
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,94 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Attributes the time of the generation and the calls of the
+ * {@link MyJavaHelper} to the rules of the grammars. Grammar-Kit writes the
+ * generated files one after another. Everything which happens between
+ * opening one file and opening the next one is attributed to the rule the
+ * first file was generated for. Files which do not belong to a single rule,
+ * like the parser, are attributed to their class name.
+ */
+final class RuleProfiler {
+  private final Map<List<String>, Entry> entries = new LinkedHashMap<>();
+
+  /**
+   * Starts recording the generation of the given grammar on the current
+   * thread. The given supplier returns the number of calls of the
+   * {@link MyJavaHelper} on the current thread.
+   */
+  @NotNull Recorder start(@NotNull String grammar, @NotNull LongSupplier callCounter) {
+    return new Recorder(grammar, callCounter);
+  }
+
+  /**
+   * Returns the given number of entries which took the most time.
+   */
+  synchronized @NotNull List<Entry> top(int count) {
+    List<Entry> result = new ArrayList<>(entries.values());
+    result.sort(Comparator.comparingLong((Entry entry) -> entry.nanos).reversed());
+    return List.copyOf(result.subList(0, Math.min(count, result.size())));
+  }
+
+  private synchronized void record(@NotNull String grammar, @NotNull String rule, long nanos, long calls) {
+    Entry entry = entries.computeIfAbsent(List.of(grammar, rule), key -> new Entry(grammar, rule));
+    entry.nanos += nanos;
+    entry.calls += calls;
+  }
+
+  final class Recorder {
+    private final @NotNull String grammar;
+    private final @NotNull LongSupplier callCounter;
+    private @Nullable String rule;
+    private long startNanos;
+    private long startCalls;
+
+    private Recorder(@NotNull String grammar, @NotNull LongSupplier callCounter) {
+      this.grammar = grammar;
+      this.callCounter = callCounter;
+    }
+
+    /**
+     * Finishes the current rule and starts the given one.
+     */
+    void startRule(@NotNull String rule) {
+      finish();
+      this.rule = rule;
+      this.startNanos = System.nanoTime();
+      this.startCalls = callCounter.getAsLong();
+    }
+
+    void finish() {
+      if (rule != null) {
+        record(grammar, rule, System.nanoTime() - startNanos, callCounter.getAsLong() - startCalls);
+        rule = null;
+      }
+    }
+  }
+
+  static final class Entry {
+    private final @NotNull String grammar;
+    private final @NotNull String rule;
+    private long nanos;
+    private long calls;
+
+    private Entry(@NotNull String grammar, @NotNull String rule) {
+      this.grammar = grammar;
+      this.rule = rule;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %s took %.1f ms with %d JavaHelper calls", grammar, rule, nanos / 1e6, calls);
+    }
+  }
+}
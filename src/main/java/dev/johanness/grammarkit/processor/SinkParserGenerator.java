@@ -0,0 +1,36 @@
+package dev.johanness.grammarkit.processor;
+
+import org.intellij.grammar.generator.ParserGenerator;
+import org.intellij.grammar.psi.BnfFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * {@link ParserGenerator} which writes the generated sources into a
+ * {@link SourceSink} instead of the file system.
+ */
+final class SinkParserGenerator extends ParserGenerator {
+  private final @NotNull SourceSink sink;
+  private final @NotNull List<String> originatingClasses;
+
+  SinkParserGenerator(
+      @NotNull BnfFile psiFile,
+      @NotNull String sourcePath,
+      @NotNull SourceSink sink,
+      @NotNull List<String> originatingClasses)
+  {
+    super(psiFile, sourcePath, "", "");
+    this.sink = sink;
+    this.originatingClasses = originatingClasses;
+  }
+
+  @Override
+  protected PrintWriter openOutputInner(String className, File file) throws IOException {
+    // The file is only derived from the output path and never created.
+    return new PrintWriter(sink.openSource(className, originatingClasses));
+  }
+}
@@ -0,0 +1,56 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+@FunctionalInterface
+interface SourceSink {
+  /**
+   * Opens the source of the given class.
+   *
+   * @param originatingClasses names of the classes the source is generated
+   *                           from, passed to the {@link Filer} for
+   *                           incremental compilation
+   */
+  @NotNull Writer openSource(@NotNull String className, @NotNull Collection<String> originatingClasses) throws IOException;
+
+  static @NotNull SourceSink of(@NotNull Filer filer) {
+    return of(filer, className -> null);
+  }
+
+  static @NotNull SourceSink of(@NotNull Filer filer, @NotNull Function<String, @Nullable Element> resolver) {
+    return of(filer, resolver, List.of());
+  }
+
+  /**
+   * Returns a sink which creates the sources with the given {@link Filer}.
+   *
+   * @param resolver resolves the names of originating classes to elements
+   * @param originatingElements additional originating elements of all sources
+   */
+  static @NotNull SourceSink of(
+      @NotNull Filer filer,
+      @NotNull Function<String, @Nullable Element> resolver,
+      @NotNull Collection<? extends Element> originatingElements)
+  {
+    return (className, originatingClasses) -> filer.createSourceFile(
+        className,
+        Stream.concat(
+            originatingElements.stream(),
+            originatingClasses.stream()
+                .map(resolver)
+                .filter(Objects::nonNull)
+        ).distinct().toArray(Element[]::new)
+    ).openWriter();
+  }
+}
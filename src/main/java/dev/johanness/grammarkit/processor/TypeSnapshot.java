@@ -0,0 +1,276 @@
+package dev.johanness.grammarkit.processor;
+
+import com.intellij.psi.NavigatablePsiElement;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.FakePsiElement;
+import org.intellij.grammar.java.JavaHelper.MethodType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.TypeMirror;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable copy of everything {@link MyJavaHelper} reports about a class.
+ * Snapshots are taken by the thread of javac and may be read by any thread
+ * afterwards, without accessing javac. Only the assignability to parameters
+ * is still checked by javac, see {@link Parameter#isAssignableFrom}. Names
+ * of types are stored as the candidates of {@link ImportIndex}, so that
+ * they can still be narrowed by the {@link GeneratedClassIndex} of the
+ * grammar which is generated.
+ */
+final class TypeSnapshot extends FakePsiElement implements NavigatablePsiElement {
+  private final @NotNull String qualifiedName;
+  private final @NotNull ElementKind kind;
+  private final @NotNull Set<Modifier> modifiers;
+  private final @Nullable Collection<String> superClass;
+  private final @NotNull Map<MethodType, List<Method>> methods = new EnumMap<>(MethodType.class);
+  private final @NotNull Map<MethodType, Map<String, List<Method>>> methodsByName = new EnumMap<>(MethodType.class);
+
+  /**
+   * @param superClass candidates for the name of the super class, or
+   *                   {@code null} if there is none
+   * @param methods    creates the methods of the class, including inherited
+   *                   methods, for the new snapshot
+   */
+  TypeSnapshot(
+      @NotNull String qualifiedName,
+      @NotNull ElementKind kind,
+      @NotNull Set<Modifier> modifiers,
+      @Nullable Collection<String> superClass,
+      @NotNull Function<TypeSnapshot, List<Method>> methods)
+  {
+    this.qualifiedName = qualifiedName;
+    this.kind = kind;
+    this.modifiers = Set.copyOf(modifiers);
+    this.superClass = superClass == null ? null : List.copyOf(superClass);
+    List<Method> allMethods = methods.apply(this);
+    for (MethodType methodType : MethodType.values()) {
+      List<Method> list = allMethods.stream()
+          .filter(method -> method.is(methodType))
+          .collect(Collectors.toUnmodifiableList());
+      Map<String, List<Method>> map = new HashMap<>();
+      for (Method method : list) {
+        map.computeIfAbsent(method.name, key -> new ArrayList<>(1)).add(method);
+      }
+      this.methods.put(methodType, list);
+      this.methodsByName.put(methodType, Map.copyOf(map));
+    }
+  }
+
+  @NotNull String getQualifiedName() {
+    return qualifiedName;
+  }
+
+  @NotNull ElementKind getKind() {
+    return kind;
+  }
+
+  boolean isPublic() {
+    return modifiers.contains(Modifier.PUBLIC);
+  }
+
+  @Nullable Collection<String> getSuperClass() {
+    return superClass;
+  }
+
+  /**
+   * Returns the methods of the given type.
+   *
+   * @param name name of the methods, or {@code null} for all methods
+   */
+  @NotNull List<Method> findMethods(@NotNull MethodType methodType, @Nullable String name) {
+    return name == null
+        ? methods.get(methodType)
+        : methodsByName.get(methodType).getOrDefault(name, Collections.emptyList());
+  }
+
+  @Override
+  public PsiElement getParent() {
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return qualifiedName;
+  }
+
+  static final class Method extends FakePsiElement implements NavigatablePsiElement, MethodSignature {
+    private final @NotNull TypeSnapshot declaringClass;
+    private final @NotNull String name;
+    private final @NotNull ElementKind kind;
+    private final @NotNull Set<Modifier> modifiers;
+    private final boolean varArgs;
+    private final @NotNull Collection<String> returnType;
+    private final @NotNull List<TypeSnapshot.Parameter> parameters;
+    private final @NotNull List<TypeParameter> typeParameters;
+    private final @NotNull List<Collection<String>> thrownTypes;
+
+    Method(
+        @NotNull TypeSnapshot declaringClass,
+        @NotNull String name,
+        @NotNull ElementKind kind,
+        @NotNull Set<Modifier> modifiers,
+        boolean varArgs,
+        @NotNull Collection<String> returnType,
+        @NotNull List<TypeSnapshot.Parameter> parameters,
+        @NotNull List<TypeParameter> typeParameters,
+        @NotNull List<Collection<String>> thrownTypes)
+    {
+      this.declaringClass = declaringClass;
+      this.name = name;
+      this.kind = kind;
+      this.modifiers = Set.copyOf(modifiers);
+      this.varArgs = varArgs;
+      this.returnType = List.copyOf(returnType);
+      this.parameters = List.copyOf(parameters);
+      this.typeParameters = List.copyOf(typeParameters);
+      this.thrownTypes = List.copyOf(thrownTypes);
+    }
+
+    @NotNull TypeSnapshot getDeclaringClass() {
+      return declaringClass;
+    }
+
+    boolean isPublic() {
+      return modifiers.contains(Modifier.PUBLIC);
+    }
+
+    @Override
+    public @NotNull ElementKind getKind() {
+      return kind;
+    }
+
+    @Override
+    public @NotNull Set<Modifier> getModifiers() {
+      return modifiers;
+    }
+
+    @Override
+    public boolean isVarArgs() {
+      return varArgs;
+    }
+
+    @NotNull Collection<String> getReturnType() {
+      return returnType;
+    }
+
+    @Override
+    public @NotNull List<TypeSnapshot.Parameter> getParameters() {
+      return parameters;
+    }
+
+    @NotNull List<TypeParameter> getTypeParameters() {
+      return typeParameters;
+    }
+
+    @NotNull List<Collection<String>> getThrownTypes() {
+      return thrownTypes;
+    }
+
+    @Override
+    public PsiElement getParent() {
+      return declaringClass;
+    }
+
+    @Override
+    public String toString() {
+      return name + parameters.stream()
+          .map(parameter -> parameter.typeName)
+          .collect(Collectors.joining(",", "(", ")"));
+    }
+  }
+
+  static final class Parameter implements MethodSignature.Parameter {
+    private final @NotNull String name;
+    private final @NotNull String typeName;
+    private final @NotNull TypeMirror type;
+    private final @NotNull Collection<String> candidates;
+    private final boolean resolved;
+    private final @NotNull Map<String, Boolean> assignableFrom = new ConcurrentHashMap<>();
+
+    /**
+     * @param type       type of javac, only used by the thread of javac to
+     *                   check assignability
+     * @param candidates candidates for the qualified name of the type
+     * @param resolved   whether the type is available, otherwise the
+     *                   candidates come from the {@link ImportIndex}
+     */
+    Parameter(
+        @NotNull String name,
+        @NotNull String typeName,
+        @NotNull TypeMirror type,
+        @NotNull Collection<String> candidates,
+        boolean resolved)
+    {
+      this.name = name;
+      this.typeName = typeName;
+      this.type = type;
+      this.candidates = List.copyOf(candidates);
+      this.resolved = resolved;
+    }
+
+    @NotNull String getName() {
+      return name;
+    }
+
+    @Override
+    public @NotNull String getTypeName() {
+      return typeName;
+    }
+
+    @Override
+    public @NotNull TypeMirror getType() {
+      return type;
+    }
+
+    /**
+     * The result is computed by the given function once per class.
+     */
+    @Override
+    public boolean isAssignableFrom(@NotNull String className, @NotNull Predicate<String> isAssignable) {
+      return assignableFrom.computeIfAbsent(className, isAssignable::test);
+    }
+
+    @Override
+    public @NotNull Collection<String> getCandidates() {
+      return candidates;
+    }
+
+    @Override
+    public boolean isResolved() {
+      return resolved;
+    }
+  }
+
+  static final class TypeParameter {
+    private final @NotNull String name;
+    private final @NotNull List<Collection<String>> bounds;
+
+    TypeParameter(@NotNull String name, @NotNull List<Collection<String>> bounds) {
+      this.name = name;
+      this.bounds = List.copyOf(bounds);
+    }
+
+    @NotNull String getName() {
+      return name;
+    }
+
+    @NotNull List<Collection<String>> getBounds() {
+      return bounds;
+    }
+  }
+}
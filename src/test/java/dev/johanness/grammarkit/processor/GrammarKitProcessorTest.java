@@ -4,17 +4,73 @@
 import com.google.testing.compile.CompilationSubject;
 import com.google.testing.compile.Compiler;
 import com.google.testing.compile.JavaFileObjects;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.psi.NavigatablePsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.DebugUtil;
+import org.intellij.grammar.LightPsi;
+import org.intellij.grammar.java.JavaHelper.MethodType;
 import org.intellij.lang.annotations.Language;
 import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("BnfResolve")
 final class GrammarKitProcessorTest {
@@ -67,6 +123,83 @@ void basics() throws IOException {
         .generatedSourceFile("org.example.lang1.impl.Lang1RootImpl");
   }
 
+  @Test
+  void withoutGrammars() {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-source" , "11")
+        .compile(elementTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    assertTrue(compilation.generatedSourceFiles().isEmpty());
+  }
+
+  @Test
+  void lexer() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    Path flexFile = createLang1FlexFile();
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Alexer=" + flexFile, "-source" , "11")
+        .compile(elementTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeeded();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1Lexer");
+  }
+
+  @Test
+  void lexerWithBinaryTables() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    Path flexFile = createLang1FlexFile();
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Alexer=" + flexFile, "-Agrammarkit.lexerTables=binary", "-source" , "11")
+        .compile(elementTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeeded();
+    CompilationSubject.assertThat(compilation)
+        .generatedFile(StandardLocation.CLASS_OUTPUT, "org.example", "Lang1Lexer.tables");
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1Lexer")
+        .contentsAsUtf8String()
+        .doesNotContain("ZZ_TRANS_PACKED_0");
+  }
+
+  @Test
+  void binaryTablesEqualUnpackedTables() throws Exception {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    Path flexFile = createLang1FlexFile();
+
+    Compilation strings = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Alexer=" + flexFile, "-source" , "11")
+        .compile(elementTypeClass);
+    Compilation binary = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Alexer=" + flexFile, "-Agrammarkit.lexerTables=binary", "-source" , "11")
+        .compile(elementTypeClass);
+    CompilationSubject.assertThat(strings)
+        .succeeded();
+    CompilationSubject.assertThat(binary)
+        .succeeded();
+
+    // The tables unpacked by JFlex in the static initializer of the lexer
+    // must be equal to the tables read from the resource.
+    Class<?> unpacked = Class.forName("org.example.Lang1Lexer", true, new CompilationClassLoader(strings));
+    Class<?> loaded = Class.forName("org.example.Lang1Lexer$ZzTables", true, new CompilationClassLoader(binary));
+    for (String table : List.of("ZZ_ACTION", "ZZ_ROWMAP", "ZZ_TRANS", "ZZ_ATTRIBUTE")) {
+      assertArrayEquals(readStaticField(unpacked, table), readStaticField(loaded, table), table);
+    }
+  }
+
   @Test
   void usageOfPsiImplUtilClass() throws IOException {
     JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
@@ -197,13 +330,212 @@ void multipleInputs() throws IOException {
   }
 
   @Test
-  @Disabled("Fails because Lang1RootImpl misses the import for Lang1Parser")
-  void ambiguousType() throws IOException {
-    // Tests the usage of parameter types which are generated by an annotation
-    // processor and are also imported using a wildcard.
+  void multipleInputsInParallel() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang.LangElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang.LangTokenType");
+    Path bnfFile1 = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang.LangElementType"
+              tokenTypeClass="org.example.lang.LangTokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+    Path bnfFile2 = createBnfFile(
+        "lang2.bnf", """
+            {
+              parserClass="org.example.Lang2Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang2"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang2"
+              psiImplPackage="org.example.lang2.impl"
+              elementTypeHolderClass="org.example.lang2.Lang2Types"
+              elementTypeClass="org.example.lang.LangElementType"
+              tokenTypeClass="org.example.lang.LangTokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang2File ::= root
+            root ::= "."+
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions(
+            "-Aparser=" + bnfFile1 + File.pathSeparator + bnfFile2,
+            "-Agrammarkit.threads=2",
+            "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1Parser");
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.lang1.impl.Lang1RootImpl");
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang2Parser");
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.lang2.impl.Lang2RootImpl");
+  }
+
+  @Test
+  void incrementalGeneration() throws IOException {
     JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
     JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path stateDir = tempDir.resolve("state");
+    String header = """
+        {
+          parserClass="org.example.Lang1Parser"
+          extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+          psiClassPrefix="Lang1"
+          psiImplClassSuffix="Impl"
+          psiPackage="org.example.lang1"
+          psiImplPackage="org.example.lang1.impl"
+          elementTypeHolderClass="org.example.lang1.Lang1Types"
+          elementTypeClass="org.example.lang1.Lang1ElementType"
+          tokenTypeClass="org.example.lang1.Lang1TokenType"
+          tokens = [ DOT='.']
+        }
+        """;
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", header + """
+            lang1File ::= root
+            root ::= "."+
+            """);
+    // Processors cannot be initialized more than once
+    Supplier<Compiler> compiler = () -> Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.stateDir=" + stateDir, "-source" , "11");
+
+    CompilationSubject.assertThat(compiler.get().compile(elementTypeClass, tokenTypeClass))
+        .succeededWithoutWarnings();
+
+    // Mark the stored source to detect whether it is reused.
+    Path storedParser;
+    try (var files = Files.walk(stateDir)) {
+      storedParser = files
+          .filter(file -> file.getFileName().toString().equals("org.example.Lang1Parser.java"))
+          .findFirst()
+          .orElseThrow();
+    }
+    Files.writeString(storedParser, "// reused\n", StandardOpenOption.APPEND);
+
+    Compilation unchanged = compiler.get().compile(elementTypeClass, tokenTypeClass);
+    CompilationSubject.assertThat(unchanged)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(unchanged)
+        .generatedSourceFile("org.example.Lang1Parser")
+        .contentsAsUtf8String()
+        .contains("// reused");
+
+    createBnfFile(
+        "lang1.bnf", header + """
+            lang1File ::= root
+            root ::= child+
+            child ::= "."
+            """);
+    Compilation changed = compiler.get().compile(elementTypeClass, tokenTypeClass);
+    CompilationSubject.assertThat(changed)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(changed)
+        .generatedSourceFile("org.example.Lang1Parser")
+        .contentsAsUtf8String()
+        .doesNotContain("// reused");
+    CompilationSubject.assertThat(changed)
+        .generatedSourceFile("org.example.lang1.Lang1Child");
+  }
+
+  @Test
+  void incrementalGenerationInParallel() throws IOException {
+    // The state is checked and saved by the thread of javac, the grammars
+    // are generated by the workers.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang.LangElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang.LangTokenType");
+    Path stateDir = tempDir.resolve("state");
+    List<Path> bnfFiles = new ArrayList<>();
+    for (int i = 1; i <= 2; ++i) {
+      bnfFiles.add(createBnfFile(
+          "lang" + i + ".bnf", """
+              {
+                parserClass="org.example.Lang%1$dParser"
+                extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+                psiClassPrefix="Lang%1$d"
+                psiImplClassSuffix="Impl"
+                psiPackage="org.example.lang%1$d"
+                psiImplPackage="org.example.lang%1$d.impl"
+                elementTypeHolderClass="org.example.lang%1$d.Lang%1$dTypes"
+                elementTypeClass="org.example.lang.LangElementType"
+                tokenTypeClass="org.example.lang.LangTokenType"
+                tokens = [ DOT='.']
+              }
+
+              lang%1$dFile ::= root
+              root ::= "."+
+              """.formatted(i)));
+    }
+    Supplier<Compilation> compile = () -> Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions(
+            "-Aparser=" + bnfFiles.get(0) + File.pathSeparator + bnfFiles.get(1),
+            "-Agrammarkit.threads=2",
+            "-Agrammarkit.stateDir=" + stateDir,
+            "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compile.get())
+        .succeededWithoutWarnings();
+
+    // Mark the stored parsers to detect whether they are reused.
+    try (var files = Files.walk(stateDir)) {
+      for (Path file : files.filter(file -> file.getFileName().toString().endsWith("Parser.java"))
+          .collect(Collectors.toList())) {
+        Files.writeString(file, "// reused\n", StandardOpenOption.APPEND);
+      }
+    }
+
+    Compilation unchanged = compile.get();
+    CompilationSubject.assertThat(unchanged)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(unchanged)
+        .generatedSourceFile("org.example.Lang1Parser")
+        .contentsAsUtf8String()
+        .contains("// reused");
+    CompilationSubject.assertThat(unchanged)
+        .generatedSourceFile("org.example.Lang2Parser")
+        .contentsAsUtf8String()
+        .contains("// reused");
+  }
+
+  @Test
+  void registeredAsAggregatingProcessor() throws IOException {
+    try (InputStream stream = GrammarKitProcessor.class.getResourceAsStream(
+        "/META-INF/gradle/incremental.annotation.processors")) {
+      assertNotNull(stream);
+      assertEquals(
+          GrammarKitProcessor.class.getName() + ",aggregating",
+          new String(stream.readAllBytes(), StandardCharsets.UTF_8).strip());
+    }
+  }
 
+  @Test
+  void environmentWrappedByGradle() throws IOException {
+    // Gradle wraps the environment and the Filer of incremental processors,
+    // which hides the environment of javac from Trees.instance. The imports
+    // of the psiImplUtilClass must still be used to resolve Lang1Root.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
     Path bnfFile = createBnfFile(
         "lang1.bnf", """
             {
@@ -219,78 +551,1319 @@ void ambiguousType() throws IOException {
               tokenTypeClass="org.example.lang1.Lang1TokenType"
               tokens = [ DOT='.']
             }
+
             lang1File ::= root
-            root ::= child+ { methods=[ randomMethod ]}
-            child ::= "."
+            root ::= "."+ { methods=[ firstRandomMethod ]}
             """);
-
     JavaFileObject psiImplUtilClass = JavaFileObjects.forSourceString(
         "org.example.lang1.impl.Lang1ImplUtilClass", """
             package org.example.lang1.impl;
-            import org.example.*; // Use wildcard to make resolution ambiguous
             import org.example.lang1.Lang1Root;
             final class Lang1ImplUtilClass {
-              static void randomMethod(Lang1Root node, Lang1Parser ambiguousParameter) {
+              static void firstRandomMethod(Lang1Root node) {
               }
             }
             """);
+    Map<String, List<String>> originatingElements = new HashMap<>();
 
     Compilation compilation = Compiler.javac()
-        .withProcessors(new GrammarKitProcessor())
+        .withProcessors(new WrappedProcessor(new GrammarKitProcessor(), originatingElements))
         .withOptions("-Aparser=" + bnfFile, "-source" , "11")
         .compile(elementTypeClass, tokenTypeClass, psiImplUtilClass);
 
     CompilationSubject.assertThat(compilation)
         .succeededWithoutWarnings();
     CompilationSubject.assertThat(compilation)
-        .generatedSourceFile("org.example.lang1.Lang1Root")
-        .containsElementsIn(JavaFileObjects.forSourceString(
-            "", """
-                package org.example.lang1;
-                public interface Lang1Root extends PsiElement {
-                  void randomMethod(Lang1Parser ambiguousParameter);
-                }
-                """));
+        .generatedSourceFile("org.example.Lang1Parser");
     CompilationSubject.assertThat(compilation)
         .generatedSourceFile("org.example.lang1.impl.Lang1RootImpl")
-        .containsElementsIn(JavaFileObjects.forSourceString(
-            "", """
-                package org.example.lang1.impl;
-                public class Lang1RootImpl extends ASTWrapperPsiElement implements Lang1Root {
-                  @Override
-                  public void randomMethod(Lang1Parser ambiguousParameter) {
-                    Lang1ImplUtilClass.randomMethod(this, ambiguousParameter);
-                  }
-                }
-                """));
+        .contentsAsUtf8String()
+        .contains("Lang1ImplUtilClass.firstRandomMethod(this)");
+    assertEquals(
+        List.of("org.example.lang1.impl.Lang1ImplUtilClass"),
+        originatingElements.get("org.example.Lang1Parser"));
   }
 
-  private JavaFileObject createElementTypeClass(String fullName) {
-    int lastDot = fullName.lastIndexOf('.');
-    String pkg = fullName.substring(0, lastDot);
-    String simpleName = fullName.substring(lastDot + 1);
+  @Test
+  void annotatedParser() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
 
-    //@Language("JAVA")
-    String source = """
-        package %1$s;
+            lang1File ::= root
+            root ::= "."+
+            """);
+    // The class must be a real file, so that the relative path can be resolved.
+    Path annotatedClass = tempDir.resolve("Lang1Grammar.java");
+    Files.writeString(annotatedClass, """
+        package org.example.lang1;
 
-        import com.intellij.psi.tree.IElementType;
-        import org.jetbrains.annotations.NonNls;
-        import org.jetbrains.annotations.NotNull;
+        import dev.johanness.grammarkit.processor.GrammarKitParser;
 
-        public class %2$s extends IElementType {
-            public %2$s(@NotNull @NonNls String debugName) {
-                super(debugName, null);
+        @GrammarKitParser("lang1.bnf")
+        public final class Lang1Grammar {}
+        """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, JavaFileObjects.forResource(annotatedClass.toUri().toURL()));
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1Parser");
+  }
+
+  @Test
+  void annotatedParserNotFound() {
+    JavaFileObject annotatedClass = JavaFileObjects.forSourceString("org.example.lang1.Lang1Grammar", """
+        package org.example.lang1;
+
+        import dev.johanness.grammarkit.processor.GrammarKitParser;
+
+        @GrammarKitParser("missing.bnf")
+        public final class Lang1Grammar {}
+        """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-source" , "11")
+        .compile(annotatedClass);
+
+    CompilationSubject.assertThat(compilation)
+        .hadErrorContaining("Cannot find BNF file: missing.bnf");
+  }
+
+  @Test
+  void commandLine() throws IOException {
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
             }
-        }
-        """.formatted(pkg, simpleName);
 
-    return JavaFileObjects.forSourceString(fullName, source);
+            lang1File ::= root
+            root ::= "."+
+            """);
+    Path outputDirectory = tempDir.resolve("out");
+
+    int exitCode = GrammarKitMain.run(
+        new String[]{"--output", outputDirectory.toString(), bnfFile.toString()},
+        System.err);
+
+    assertEquals(0, exitCode);
+    assertTrue(Files.isRegularFile(outputDirectory.resolve("org/example/Lang1Parser.java")));
+    assertTrue(Files.isRegularFile(outputDirectory.resolve("org/example/lang1/Lang1Types.java")));
   }
 
-  private Path createBnfFile(String name, @Language("BNF") String content) throws IOException {
-    Path path = tempDir.resolve(name);
-    Files.writeString(path, content);
-    return path;
+  @Test
+  void commandLineWithoutOutput() {
+    assertEquals(2, GrammarKitMain.run(new String[]{"lang1.bnf"}, System.err));
+  }
+
+  @Test
+  void optimizedParser() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ A='a' B='b' C='c' ]
+            }
+
+            lang1File ::= root*
+            root ::= (A | B) C
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.optimize", "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1Parser")
+        .contentsAsUtf8String()
+        .contains("  static final com.intellij.psi.tree.IElementType[] TOKENS_0_ = {A, B};");
+  }
+
+  @Test
+  void optimizedParserBuildsSameTree() throws Exception {
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ A='a' B='b' C='c' ]
+            }
+
+            lang1File ::= item*
+            private item ::= root | other
+            root ::= (A | B) C
+            other ::= (A | B) B { parserClass="org.example.Lang1OtherParser" }
+            """);
+
+    Compilation plain = compileParserWithDefinition(bnfFile, "Lang1Plain");
+    Compilation optimized = compileParserWithDefinition(bnfFile, "Lang1Optimized", "-Agrammarkit.optimize");
+
+    // The tokens of root and other share one field across both parsers.
+    String parsers = readGeneratedSource(optimized, "org.example.Lang1Parser") +
+                     readGeneratedSource(optimized, "org.example.Lang1OtherParser");
+    assertEquals(1, parsers.split("\\{A, B};", -1).length - 1, parsers);
+
+    String text = "ac ab bc ba c x ac";
+    assertEquals(parseToString(plain, text), parseToString(optimized, text));
+  }
+
+  @Test
+  void benchmark() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    JavaFileObject parserDefinitionClass = createParserDefinitionClass("org.example.lang1.Lang1ParserDefinition");
+    Path corpus = Files.createDirectories(tempDir.resolve("corpus"));
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.benchmarks=" + corpus, "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, parserDefinitionClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.Lang1ParserBenchmark")
+        .contentsAsUtf8String()
+        .contains("@Param(\"org.example.lang1.Lang1ParserDefinition\")");
+  }
+
+  @Test
+  void benchmarkWithIncrementalState() throws IOException {
+    // Enabling benchmarks must not replay the sources of a generation
+    // without benchmarks.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    JavaFileObject parserDefinitionClass = createParserDefinitionClass("org.example.lang1.Lang1ParserDefinition");
+    Path stateDir = tempDir.resolve("state");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+
+    Compilation withoutBenchmarks = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.stateDir=" + stateDir, "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, parserDefinitionClass);
+    CompilationSubject.assertThat(withoutBenchmarks)
+        .succeededWithoutWarnings();
+    assertTrue(withoutBenchmarks.generatedSourceFiles().stream()
+        .noneMatch(file -> file.getName().endsWith("Lang1ParserBenchmark.java")));
+
+    Compilation withBenchmarks = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions(
+            "-Aparser=" + bnfFile,
+            "-Agrammarkit.stateDir=" + stateDir,
+            "-Agrammarkit.benchmarks=src/jmh/corpus",
+            "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, parserDefinitionClass);
+    CompilationSubject.assertThat(withBenchmarks)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(withBenchmarks)
+        .generatedSourceFile("org.example.Lang1ParserBenchmark")
+        .contentsAsUtf8String()
+        .contains("@Param(\"src/jmh/corpus\")");
+  }
+
+  @Test
+  void profile() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.profile=50", "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .hadNoteContaining("lang1.bnf: root took");
+    CompilationSubject.assertThat(compilation)
+        .hadNoteContaining("lang1.bnf: Lang1Parser took");
+  }
+
+  @Test
+  void profileWithIncrementalState() throws IOException {
+    // Grammars which are up to date are generated anyway, so that they
+    // show up in the profile.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path stateDir = tempDir.resolve("state");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+    Supplier<Compilation> compile = () -> Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions(
+            "-Aparser=" + bnfFile,
+            "-Agrammarkit.profile",
+            "-Agrammarkit.stateDir=" + stateDir,
+            "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compile.get())
+        .succeededWithoutWarnings();
+    Compilation unchanged = compile.get();
+    CompilationSubject.assertThat(unchanged)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(unchanged)
+        .hadNoteContaining("lang1.bnf: Lang1Parser took");
+  }
+
+  @Test
+  void buildReport() throws IOException {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path reportFile = tempDir.resolve("report.json");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-Agrammarkit.report=" + reportFile, "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    String report = Files.readString(reportFile);
+    assertTrue(report.contains("\"init\""), report);
+    assertTrue(report.contains("\"parse\""), report);
+    assertTrue(report.contains("\"generate\""), report);
+    assertTrue(report.contains("\"write\""), report);
+    assertTrue(report.contains("\"grammar\": \"" + bnfFile + "\""), report);
+    assertTrue(report.contains("\"files\": 6"), report);
+    assertTrue(report.contains("\"findClass\""), report);
+  }
+
+  @Test
+  void psiAndJavaHelperAreReleased() throws Exception {
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              psiImplUtilClass="org.example.lang1.impl.Lang1ImplUtilClass"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+
+            lang1File ::= root
+            root ::= "."+ { methods=[ firstRandomMethod ]}
+            """);
+    JavaFileObject psiImplUtilClass = JavaFileObjects.forSourceString(
+        "org.example.lang1.impl.Lang1ImplUtilClass", """
+            package org.example.lang1.impl;
+            import org.example.lang1.Lang1Root;
+            final class Lang1ImplUtilClass {
+              static void firstRandomMethod(Lang1Root node) {
+              }
+            }
+            """);
+
+    // The processor references the JavaHelper, which references the
+    // elements of javac, including the psiImplUtilClass.
+    WeakReference<GrammarKitProcessor> processor =
+        compileAndForget(bnfFile, elementTypeClass, tokenTypeClass, psiImplUtilClass);
+    assertCollected(processor, "GrammarKitProcessor");
+
+    // The BNF file is parsed into the project shared by the JVM.
+    WeakReference<PsiFile> file = parseAndRelease(bnfFile);
+    assertCollected(file, "BnfFile");
+  }
+
+  @Test
+  void inheritedGenericUtilMethod() throws IOException {
+    // Methods of the psiImplUtilClass and its supertypes are answered from
+    // a snapshot taken before the generation.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              psiImplUtilClass="org.example.lang1.impl.Lang1ImplUtilClass"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+            lang1File ::= root
+            root ::= "."+ { methods=[ convert ]}
+            """);
+    JavaFileObject baseClass = JavaFileObjects.forSourceString(
+        "org.example.lang1.impl.Lang1ImplUtilBase", """
+            package org.example.lang1.impl;
+            import java.io.IOException;
+            import org.example.lang1.Lang1Root;
+            class Lang1ImplUtilBase {
+              static <T extends CharSequence> T convert(Lang1Root node, Class<T> type) throws IOException {
+                throw new IOException();
+              }
+            }
+            """);
+    JavaFileObject psiImplUtilClass = JavaFileObjects.forSourceString(
+        "org.example.lang1.impl.Lang1ImplUtilClass", """
+            package org.example.lang1.impl;
+            final class Lang1ImplUtilClass extends Lang1ImplUtilBase {
+            }
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, baseClass, psiImplUtilClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.lang1.Lang1Root")
+        .contentsAsUtf8String()
+        .contains("IOException");
+  }
+
+  @Test
+  void concurrentCompilations() throws Exception {
+    // Compilations within the same JVM share the environment of Grammar-Kit
+    // and JFlex, for example within the Gradle daemon. They must not see
+    // each other's JavaHelper, util classes or lexers. The barrier lets the
+    // compilations of each round start at the same time.
+    int count = 4;
+    CyclicBarrier barrier = new CyclicBarrier(count);
+    List<Callable<Compilation>> compilations = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      String lang = "lang" + i;
+      String prefix = "Lang" + i;
+      Path bnfFile = createBnfFile(
+          lang + ".bnf", """
+              {
+                parserClass="org.example.%2$sParser"
+                extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+                psiClassPrefix="%2$s"
+                psiImplClassSuffix="Impl"
+                psiPackage="org.example.%1$s"
+                psiImplPackage="org.example.%1$s.impl"
+                psiImplUtilClass="org.example.%1$s.impl.%2$sImplUtilClass"
+                elementTypeHolderClass="org.example.%1$s.%2$sTypes"
+                elementTypeClass="org.example.%1$s.%2$sElementType"
+                tokenTypeClass="org.example.%1$s.%2$sTokenType"
+                tokens = [ DOT='.']
+              }
+              %1$sFile ::= root
+              root ::= "."+ { methods=[ method%3$d ]}
+              """.formatted(lang, prefix, i));
+      Path flexFile = createFlexFile(
+          lang + ".flex", Files.readString(createLang1FlexFile())
+              .replace("Lang1", prefix)
+              .replace("lang1", lang));
+      List<JavaFileObject> sources = List.of(
+          createElementTypeClass("org.example." + lang + "." + prefix + "ElementType"),
+          createElementTypeClass("org.example." + lang + "." + prefix + "TokenType"),
+          JavaFileObjects.forSourceString(
+              "org.example." + lang + ".impl." + prefix + "ImplUtilClass", """
+                  package org.example.%1$s.impl;
+                  import org.example.%1$s.%2$sRoot;
+                  final class %2$sImplUtilClass {
+                    static int method%3$d(%2$sRoot node) {
+                      return %3$d;
+                    }
+                  }
+                  """.formatted(lang, prefix, i)));
+      compilations.add(() -> {
+        barrier.await();
+        return Compiler.javac()
+            .withProcessors(new GrammarKitProcessor())
+            .withOptions("-Aparser=" + bnfFile, "-Alexer=" + flexFile, "-source" , "11")
+            .compile(sources);
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(count);
+    try {
+      for (int round = 0; round < 5; ++round) {
+        List<Future<Compilation>> results = executor.invokeAll(compilations);
+        for (int i = 0; i < results.size(); ++i) {
+          Compilation compilation = results.get(i).get();
+          CompilationSubject.assertThat(compilation)
+              .succeeded();
+          CompilationSubject.assertThat(compilation)
+              .generatedSourceFile("org.example.lang" + i + ".Lang" + i + "Root")
+              .contentsAsUtf8String()
+              .contains("int method" + i + "()");
+          CompilationSubject.assertThat(compilation)
+              .generatedSourceFile("org.example.lang" + i + ".impl.Lang" + i + "RootImpl")
+              .contentsAsUtf8String()
+              .contains("Lang" + i + "ImplUtilClass.method" + i + "(this)");
+          CompilationSubject.assertThat(compilation)
+              .generatedSourceFile("org.example.Lang" + i + "Lexer")
+              .contentsAsUtf8String()
+              .contains("new Lang" + i + "ElementType(\"DOT\")");
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void ambiguousType() throws IOException {
+    // Tests the usage of parameter types which are generated by an annotation
+    // processor and are also imported using a wildcard.
+    JavaFileObject elementTypeClass = createElementTypeClass("org.example.lang1.Lang1ElementType");
+    JavaFileObject tokenTypeClass = createElementTypeClass("org.example.lang1.Lang1TokenType");
+
+    Path bnfFile = createBnfFile(
+        "lang1.bnf", """
+            {
+              parserClass="org.example.Lang1Parser"
+              extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+              psiClassPrefix="Lang1"
+              psiImplClassSuffix="Impl"
+              psiPackage="org.example.lang1"
+              psiImplPackage="org.example.lang1.impl"
+              psiImplUtilClass="org.example.lang1.impl.Lang1ImplUtilClass"
+              elementTypeHolderClass="org.example.lang1.Lang1Types"
+              elementTypeClass="org.example.lang1.Lang1ElementType"
+              tokenTypeClass="org.example.lang1.Lang1TokenType"
+              tokens = [ DOT='.']
+            }
+            lang1File ::= root
+            root ::= child+ { methods=[ randomMethod ]}
+            child ::= "."
+            """);
+
+    JavaFileObject psiImplUtilClass = JavaFileObjects.forSourceString(
+        "org.example.lang1.impl.Lang1ImplUtilClass", """
+            package org.example.lang1.impl;
+            import org.example.*; // Use wildcard to make resolution ambiguous
+            import org.example.lang1.Lang1Root;
+            final class Lang1ImplUtilClass {
+              static void randomMethod(Lang1Root node, Lang1Parser ambiguousParameter) {
+              }
+            }
+            """);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-source" , "11")
+        .compile(elementTypeClass, tokenTypeClass, psiImplUtilClass);
+
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.lang1.Lang1Root")
+        .containsElementsIn(JavaFileObjects.forSourceString(
+            "", """
+                package org.example.lang1;
+                public interface Lang1Root extends PsiElement {
+                  void randomMethod(Lang1Parser ambiguousParameter);
+                }
+                """));
+    CompilationSubject.assertThat(compilation)
+        .generatedSourceFile("org.example.lang1.impl.Lang1RootImpl")
+        .containsElementsIn(JavaFileObjects.forSourceString(
+            "", """
+                package org.example.lang1.impl;
+                public class Lang1RootImpl extends ASTWrapperPsiElement implements Lang1Root {
+                  @Override
+                  public void randomMethod(Lang1Parser ambiguousParameter) {
+                    Lang1ImplUtilClass.randomMethod(this, ambiguousParameter);
+                  }
+                }
+                """));
+  }
+
+  @Test
+  void queriesOfWorkersRunOnTheThreadOfJavac() {
+    JavaFileObject utilClass = JavaFileObjects.forSourceString(
+        "org.example.Util", """
+            package org.example;
+            final class Util {
+              static void compare(Comparable<Integer> value) {
+              }
+            }
+            """);
+
+    withJavaHelper(helper -> {
+      helper.snapshot(List.of("org.example.Util"));
+      // String implements the erasure of the parameter, but is not assignable.
+      assertEquals(0, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "compare", 1, "java.lang.String").size());
+      assertEquals(1, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "compare", 1, "java.lang.Integer").size());
+
+      ProcessingThread processingThread = helper.getProcessingThread();
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<?> unserved = executor.submit(() -> helper.findClass("java.lang.String"));
+        ExecutionException e = assertThrows(ExecutionException.class, unserved::get);
+        assertTrue(e.getCause() instanceof IllegalStateException, e.toString());
+
+        Future<NavigatablePsiElement> served = processingThread.submit(
+            executor, () -> helper.findClass("java.lang.String"));
+        processingThread.serveUntilDone(List.of(served));
+        assertNotNull(served.get());
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }, utilClass);
+  }
+
+  @Test
+  void describeClassIsNotCounted() {
+    // The incremental state describes classes, which must not show up as
+    // calls of Grammar-Kit in the build report.
+    JavaFileObject utilClass = JavaFileObjects.forSourceString(
+        "org.example.Util", """
+            package org.example;
+            import java.io.IOException;
+            final class Util {
+              static String read(CharSequence value) throws IOException {
+                return value.toString();
+              }
+            }
+            """);
+
+    withJavaHelper(helper -> {
+      String description = helper.describeClass("org.example.Util");
+      assertTrue(description.contains("read"), description);
+      assertTrue(description.contains("java.io.IOException"), description);
+      assertEquals(Map.of(), helper.getCallCounts());
+    }, utilClass);
+  }
+
+  @Test
+  void modelCacheInternsWrappers() {
+    withJavaHelper(helper -> {
+      ModelCache<?> cache = helper.getCache();
+      NavigatablePsiElement first = helper.findClass("java.lang.String");
+      long hits = cache.getHits();
+      long misses = cache.getMisses();
+      assertSame(first, helper.findClass("java.lang.String"));
+      // Type element and wrapper
+      assertEquals(hits + 2, cache.getHits());
+      assertEquals(misses, cache.getMisses());
+
+      // Missing classes are cached as well.
+      assertNull(helper.findClass("org.example.Missing"));
+      assertEquals(misses + 1, cache.getMisses());
+      assertNull(helper.findClass("org.example.Missing"));
+      assertEquals(misses + 1, cache.getMisses());
+
+      helper.startRound();
+      assertNotNull(helper.findClass("java.lang.String"));
+      assertEquals(misses + 3, cache.getMisses());
+    });
+  }
+
+  @Test
+  void importsResolveTypesWhichAreNotGeneratedYet() {
+    JavaFileObject utilClass = JavaFileObjects.forSourceString(
+        "org.example.Util", """
+            package org.example;
+            import java.util.*;
+            import org.example.gen.Missing;
+            final class Util {
+              static void single(Missing value) {
+              }
+              static void nested(Missing.Inner value) {
+              }
+              static void wildcard(Unknown value) {
+              }
+            }
+            """);
+
+    withJavaHelper(helper -> {
+      List<NavigatablePsiElement> single = helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "single", 1);
+      assertEquals(List.of("void", "org.example.gen.Missing", "value"),
+                   helper.getMethodTypes(single.get(0)));
+      List<NavigatablePsiElement> nested = helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "nested", 1);
+      assertEquals(List.of("void", "org.example.gen.Missing.Inner", "value"),
+                   helper.getMethodTypes(nested.get(0)));
+
+      // The simple name, the own package and every wildcard import.
+      for (String candidate : List.of("Unknown", "org.example.Unknown", "java.util.Unknown")) {
+        assertEquals(1, helper.findClassMethods(
+            "org.example.Util", MethodType.STATIC, "wildcard", 1, candidate).size(), candidate);
+      }
+      assertEquals(0, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "wildcard", 1, "org.example.gen.Unknown").size());
+    }, Map.of(
+        "org.example.gen.Missing", """
+            package org.example.gen;
+            public class Missing {
+              public static class Inner {
+              }
+            }
+            """,
+        "org.example.Unknown", """
+            package org.example;
+            class Unknown {
+            }
+            """), utilClass);
+  }
+
+  @Test
+  void methodTableIncludesInheritedMethods() {
+    JavaFileObject utilClass = JavaFileObjects.forSourceString(
+        "org.example.Util", """
+            package org.example;
+            class Base {
+              static void create(String value) {
+              }
+              void run() {
+              }
+            }
+            final class Util extends Base {
+              private Util() {
+              }
+              Util(int value) {
+              }
+              static void create(String value, int count) {
+              }
+              static void create(Object value) {
+              }
+              void run(String value) {
+              }
+            }
+            """);
+
+    withJavaHelper(helper -> {
+      List<NavigatablePsiElement> create = helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "create", -1);
+      assertEquals(3, create.size());
+      assertEquals(
+          List.of("org.example.Base", "org.example.Util", "org.example.Util"),
+          create.stream().map(helper::getDeclaringClass).sorted().collect(Collectors.toList()));
+      assertEquals(2, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "create", 1).size());
+      assertEquals(2, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "create", 1, "java.lang.String").size());
+      assertEquals(1, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "create", 1, "java.lang.Integer").size());
+      assertEquals(1, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "create", 2, "*", "int").size());
+
+      assertEquals(0, helper.findClassMethods(
+          "org.example.Util", MethodType.INSTANCE, "create", -1).size());
+      assertEquals(0, helper.findClassMethods(
+          "org.example.Util", MethodType.STATIC, "run", -1).size());
+      assertEquals(2, helper.findClassMethods(
+          "org.example.Util", MethodType.INSTANCE, "run", -1).size());
+
+      // The private constructor is not visible to the generated sources.
+      List<NavigatablePsiElement> constructors = helper.findClassMethods(
+          "org.example.Util", MethodType.CONSTRUCTOR, "*", -1);
+      assertEquals(1, constructors.size());
+      assertEquals(List.of("void", "int", "value"), helper.getMethodTypes(constructors.get(0)));
+    }, utilClass);
+  }
+
+  private JavaFileObject createElementTypeClass(String fullName) {
+    int lastDot = fullName.lastIndexOf('.');
+    String pkg = fullName.substring(0, lastDot);
+    String simpleName = fullName.substring(lastDot + 1);
+
+    //@Language("JAVA")
+    String source = """
+        package %1$s;
+
+        import com.intellij.psi.tree.IElementType;
+        import org.jetbrains.annotations.NonNls;
+        import org.jetbrains.annotations.NotNull;
+
+        public class %2$s extends IElementType {
+            public %2$s(@NotNull @NonNls String debugName) {
+                super(debugName, null);
+            }
+        }
+        """.formatted(pkg, simpleName);
+
+    return JavaFileObjects.forSourceString(fullName, source);
+  }
+
+  private JavaFileObject createParserDefinitionClass(String fullName) {
+    int lastDot = fullName.lastIndexOf('.');
+    String pkg = fullName.substring(0, lastDot);
+    String simpleName = fullName.substring(lastDot + 1);
+
+    String source = """
+        package %1$s;
+
+        import com.intellij.lang.ASTNode;
+        import com.intellij.lang.ParserDefinition;
+        import com.intellij.lang.PsiParser;
+        import com.intellij.lexer.Lexer;
+        import com.intellij.openapi.project.Project;
+        import com.intellij.psi.FileViewProvider;
+        import com.intellij.psi.PsiElement;
+        import com.intellij.psi.PsiFile;
+        import com.intellij.psi.tree.IFileElementType;
+        import com.intellij.psi.tree.TokenSet;
+
+        public class %2$s implements ParserDefinition {
+          public Lexer createLexer(Project project) { return null; }
+          public PsiParser createParser(Project project) { return null; }
+          public IFileElementType getFileNodeType() { return null; }
+          public TokenSet getCommentTokens() { return TokenSet.EMPTY; }
+          public TokenSet getStringLiteralElements() { return TokenSet.EMPTY; }
+          public PsiElement createElement(ASTNode node) { return null; }
+          public PsiFile createFile(FileViewProvider viewProvider) { return null; }
+        }
+        """.formatted(pkg, simpleName);
+
+    return JavaFileObjects.forSourceString(fullName, source);
+  }
+
+  private Path createLang1FlexFile() throws IOException {
+    return createFlexFile(
+        "lang1.flex", """
+            package org.example;
+
+            import com.intellij.psi.TokenType;
+            import com.intellij.psi.tree.IElementType;
+            import org.example.lang1.Lang1ElementType;
+
+            %%
+
+            %class Lang1Lexer
+            %public
+            %unicode
+            %function advance
+            %type IElementType
+
+            %{
+              private static final IElementType DOT = new Lang1ElementType("DOT");
+            %}
+
+            %%
+
+            "."  { return DOT; }
+            [^]  { return TokenType.BAD_CHARACTER; }
+            """);
+  }
+
+  /**
+   * Runs the given check on the thread of javac, with a {@link MyJavaHelper}
+   * for the first round of a compilation of the given sources.
+   */
+  private static void withJavaHelper(JavaHelperCheck check, JavaFileObject... sources) {
+    withJavaHelper(check, Map.of(), sources);
+  }
+
+  /**
+   * Like {@link #withJavaHelper(JavaHelperCheck, JavaFileObject...)}, but
+   * generates the given sources after the check, so that the compilation
+   * may refer to classes which are not available during the check.
+   */
+  private static void withJavaHelper(
+      JavaHelperCheck check, Map<String, String> generatedSources, JavaFileObject... sources)
+  {
+    AbstractProcessor processor = new AbstractProcessor() {
+      @Override
+      public Set<String> getSupportedAnnotationTypes() {
+        return Set.of("*");
+      }
+
+      @Override
+      public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+      }
+
+      @Override
+      public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (!roundEnv.processingOver()) {
+          try {
+            check.run(new MyJavaHelper(processingEnv));
+            for (Map.Entry<String, String> source : generatedSources.entrySet()) {
+              try (Writer writer = processingEnv.getFiler().createSourceFile(source.getKey()).openWriter()) {
+                writer.write(source.getValue());
+              }
+            }
+          }
+          catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+        return false;
+      }
+    };
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(processor)
+        .withOptions("-source" , "11")
+        .compile(sources);
+
+    CompilationSubject.assertThat(compilation)
+        .succeeded();
+  }
+
+  private Compilation compileParserWithDefinition(Path bnfFile, String languageId, String... options) {
+    List<String> allOptions = new ArrayList<>(List.of("-Aparser=" + bnfFile, "-source" , "11"));
+    allOptions.addAll(List.of(options));
+    //@Language("JAVA")
+    String parserDefinition = """
+        package org.example;
+
+        import com.intellij.extapi.psi.PsiFileBase;
+        import com.intellij.lang.ASTNode;
+        import com.intellij.lang.Language;
+        import com.intellij.lang.ParserDefinition;
+        import com.intellij.lang.PsiParser;
+        import com.intellij.lexer.Lexer;
+        import com.intellij.lexer.LexerBase;
+        import com.intellij.openapi.fileTypes.FileType;
+        import com.intellij.openapi.fileTypes.PlainTextFileType;
+        import com.intellij.openapi.project.Project;
+        import com.intellij.psi.FileViewProvider;
+        import com.intellij.psi.PsiElement;
+        import com.intellij.psi.PsiFile;
+        import com.intellij.psi.TokenType;
+        import com.intellij.psi.tree.IElementType;
+        import com.intellij.psi.tree.IFileElementType;
+        import com.intellij.psi.tree.TokenSet;
+        import org.example.lang1.Lang1Types;
+
+        public class Lang1ParserDefinition implements ParserDefinition {
+          static final Language LANGUAGE = new Language("%s") {};
+          static final IFileElementType FILE = new IFileElementType(LANGUAGE);
+
+          public Lexer createLexer(Project project) { return new CharLexer(); }
+          public PsiParser createParser(Project project) { return new Lang1Parser(); }
+          public IFileElementType getFileNodeType() { return FILE; }
+          public TokenSet getCommentTokens() { return TokenSet.EMPTY; }
+          public TokenSet getStringLiteralElements() { return TokenSet.EMPTY; }
+          public PsiElement createElement(ASTNode node) { return Lang1Types.Factory.createElement(node); }
+
+          public PsiFile createFile(FileViewProvider viewProvider) {
+            return new PsiFileBase(viewProvider, LANGUAGE) {
+              public FileType getFileType() { return PlainTextFileType.INSTANCE; }
+              public String toString() { return "Lang1File"; }
+            };
+          }
+
+          /** One token per character. */
+          private static final class CharLexer extends LexerBase {
+            private CharSequence buffer;
+            private int end;
+            private int tokenStart;
+            private int tokenEnd;
+
+            public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
+              this.buffer = buffer;
+              this.end = endOffset;
+              this.tokenStart = startOffset;
+              this.tokenEnd = Math.min(startOffset + 1, endOffset);
+            }
+
+            public int getState() { return 0; }
+
+            public IElementType getTokenType() {
+              if (tokenStart >= end) {
+                return null;
+              }
+              switch (buffer.charAt(tokenStart)) {
+                case 'a': return Lang1Types.A;
+                case 'b': return Lang1Types.B;
+                case 'c': return Lang1Types.C;
+                case ' ': return TokenType.WHITE_SPACE;
+                default: return TokenType.BAD_CHARACTER;
+              }
+            }
+
+            public int getTokenStart() { return tokenStart; }
+            public int getTokenEnd() { return tokenEnd; }
+
+            public void advance() {
+              tokenStart = tokenEnd;
+              tokenEnd = Math.min(tokenStart + 1, end);
+            }
+
+            public CharSequence getBufferSequence() { return buffer; }
+            public int getBufferEnd() { return end; }
+          }
+        }
+        """.formatted(languageId);
+
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions(allOptions)
+        .compile(
+            createElementTypeClass("org.example.lang1.Lang1ElementType"),
+            createElementTypeClass("org.example.lang1.Lang1TokenType"),
+            JavaFileObjects.forSourceString("org.example.Lang1ParserDefinition", parserDefinition));
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    return compilation;
+  }
+
+  private static String parseToString(Compilation compilation, String text) throws ReflectiveOperationException {
+    ClassLoader classLoader = new CompilationClassLoader(compilation);
+    ParserDefinition definition = (ParserDefinition) Class.forName("org.example.Lang1ParserDefinition", true, classLoader)
+        .getConstructor()
+        .newInstance();
+    PsiFile file = LightPsi.parseFile("test.lang1", text, definition);
+    assertNotNull(file);
+    return DebugUtil.psiToString(file, false);
+  }
+
+  private static String readGeneratedSource(Compilation compilation, String className) throws IOException {
+    Optional<JavaFileObject> file = compilation.generatedSourceFile(className);
+    assertTrue(file.isPresent(), className);
+    return file.get().getCharContent(true).toString();
+  }
+
+  private static int[] readStaticField(Class<?> type, String name) throws ReflectiveOperationException {
+    Field field = type.getDeclaredField(name);
+    field.setAccessible(true);
+    return (int[]) field.get(null);
+  }
+
+  private static WeakReference<GrammarKitProcessor> compileAndForget(Path bnfFile, JavaFileObject... sources) {
+    GrammarKitProcessor processor = new GrammarKitProcessor();
+    Compilation compilation = Compiler.javac()
+        .withProcessors(processor)
+        .withOptions("-Aparser=" + bnfFile, "-source" , "11")
+        .compile(sources);
+    CompilationSubject.assertThat(compilation)
+        .succeededWithoutWarnings();
+    return new WeakReference<>(processor);
+  }
+
+  private static WeakReference<PsiFile> parseAndRelease(Path bnfFile) throws IOException {
+    GrammarKitEnvironment environment = GrammarKitEnvironment.getInstance();
+    PsiFile file = environment.parse(bnfFile);
+    assertNotNull(file);
+    environment.releasePsi(file);
+    environment.dropPsiCaches();
+    return new WeakReference<>(file);
+  }
+
+  private static void assertCollected(WeakReference<?> reference, String name) throws InterruptedException {
+    for (int i = 0; i < 20 && reference.get() != null; ++i) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertNull(reference.get(), name + " is still reachable");
+  }
+
+  private Path createFlexFile(String name, String content) throws IOException {
+    Path path = tempDir.resolve(name);
+    Files.writeString(path, content);
+    return path;
+  }
+
+  private Path createBnfFile(String name, @Language("BNF") String content) throws IOException {
+    Path path = tempDir.resolve(name);
+    Files.writeString(path, content);
+    return path;
+  }
+
+  /**
+   * Passes a wrapped environment to the given processor, like Gradle does
+   * for incremental processors. Records the originating elements of the
+   * created source files.
+   */
+  private static final class WrappedProcessor implements Processor {
+    private final Processor delegate;
+    private final Map<String, List<String>> originatingElements;
+
+    WrappedProcessor(Processor delegate, Map<String, List<String>> originatingElements) {
+      this.delegate = delegate;
+      this.originatingElements = originatingElements;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+      return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+      Filer filer = wrap(Filer.class, processingEnv.getFiler(), (method, args) -> {
+        if (method.getName().equals("createSourceFile")) {
+          originatingElements.put(args[0].toString(), Arrays.stream((Element[]) args[1])
+              .map(Object::toString)
+              .collect(Collectors.toList()));
+        }
+      });
+      delegate.init(new WrappedEnvironment(processingEnv, filer));
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      return delegate.process(annotations, roundEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(
+        Element element, AnnotationMirror annotation, ExecutableElement member, String userText)
+    {
+      return delegate.getCompletions(element, annotation, member, userText);
+    }
+
+    private static <T> T wrap(Class<T> type, T instance, BiConsumer<Method, Object[]> listener) {
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+        listener.accept(method, args);
+        try {
+          return method.invoke(instance, args);
+        }
+        catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }));
+    }
+  }
+
+  /**
+   * Loads the classes and resources written by a compilation.
+   */
+  private static final class CompilationClassLoader extends ClassLoader {
+    private final Compilation compilation;
+
+    CompilationClassLoader(Compilation compilation) {
+      super(GrammarKitProcessorTest.class.getClassLoader());
+      this.compilation = compilation;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      int lastDot = name.lastIndexOf('.');
+      byte[] bytes = readGeneratedFile(name.substring(0, lastDot), name.substring(lastDot + 1) + ".class");
+      if (bytes == null) {
+        throw new ClassNotFoundException(name);
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+      int lastSlash = name.lastIndexOf('/');
+      byte[] bytes = readGeneratedFile(name.substring(0, Math.max(lastSlash, 0)).replace('/', '.'), name.substring(lastSlash + 1));
+      return bytes == null ? super.getResourceAsStream(name) : new ByteArrayInputStream(bytes);
+    }
+
+    private byte[] readGeneratedFile(String packageName, String relativeName) {
+      Optional<JavaFileObject> file = compilation.generatedFile(StandardLocation.CLASS_OUTPUT, packageName, relativeName);
+      if (file.isEmpty()) {
+        return null;
+      }
+      try (InputStream input = file.get().openInputStream()) {
+        return input.readAllBytes();
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Keeps the environment of javac in a private field, like the wrapper
+   * of Gradle.
+   */
+  private static final class WrappedEnvironment implements ProcessingEnvironment {
+    private final ProcessingEnvironment delegate;
+    private final Filer filer;
+
+    WrappedEnvironment(ProcessingEnvironment delegate, Filer filer) {
+      this.delegate = delegate;
+      this.filer = filer;
+    }
+
+    @Override
+    public Map<String, String> getOptions() {
+      return delegate.getOptions();
+    }
+
+    @Override
+    public Messager getMessager() {
+      return delegate.getMessager();
+    }
+
+    @Override
+    public Filer getFiler() {
+      return filer;
+    }
+
+    @Override
+    public Elements getElementUtils() {
+      return delegate.getElementUtils();
+    }
+
+    @Override
+    public Types getTypeUtils() {
+      return delegate.getTypeUtils();
+    }
+
+    @Override
+    public SourceVersion getSourceVersion() {
+      return delegate.getSourceVersion();
+    }
+
+    @Override
+    public Locale getLocale() {
+      return delegate.getLocale();
+    }
+  }
+
+  @FunctionalInterface
+  private interface JavaHelperCheck {
+    void run(MyJavaHelper helper) throws Exception;
   }
 }
@@ -0,0 +1,223 @@
+package dev.johanness.grammarkit.processor;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the slim jar of the processor with the processor on the full
+ * class path of IntelliJ. Both generate the same grammar in a new JVM with
+ * {@link GrammarKitMain}. Run with {@code gradle slimTest}.
+ */
+@Tag("slim")
+class SlimJarTest {
+  private static final int RUNS = 3;
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void sameOutputWithLowerFootprint() throws Exception {
+    String slimJar = requiredProperty("grammarkit.slimJar");
+    String fullClasspath = requiredProperty("grammarkit.fullClasspath");
+    String launcherClasspath = requiredProperty("grammarkit.launcherClasspath");
+
+    SyntheticGrammar grammar = new SyntheticGrammar(500, 10, false);
+    Path bnfFile = tempDir.resolve("synth.bnf");
+    Files.writeString(bnfFile, grammar.getBnf());
+    Path flexFile = tempDir.resolve("synth.flex");
+    Files.writeString(flexFile, """
+        package org.example;
+
+        import com.intellij.psi.TokenType;
+        import com.intellij.psi.tree.IElementType;
+
+        %%
+
+        %class SynthLexer
+        %public
+        %unicode
+        %function advance
+        %type IElementType
+
+        %%
+
+        [^]  { return TokenType.BAD_CHARACTER; }
+        """);
+
+    Usage full = null;
+    Usage slim = null;
+    for (int i = 0; i < RUNS; ++i) {
+      // Both variants resolve classes like ASTWrapperPsiElement from the
+      // same class path, so that only the processor itself differs.
+      full = Usage.min(full, run("full" + i, fullClasspath, fullClasspath, launcherClasspath, bnfFile, flexFile));
+      slim = Usage.min(slim, run("slim" + i, slimJar, fullClasspath, launcherClasspath, bnfFile, flexFile));
+    }
+
+    Map<String, String> expected = readTree(tempDir.resolve("full0"));
+    assertTrue(expected.containsKey("org/example/SynthParser.java"), "Parser not generated");
+    assertTrue(expected.containsKey("org/example/SynthLexer.java"), "Lexer not generated");
+    for (int i = 0; i < RUNS; ++i) {
+      assertEquals(expected, readTree(tempDir.resolve("slim" + i)));
+    }
+    // Startup times vary too much between runs to be compared. The test
+    // checks the processor path instead, which javac has to open and
+    // search for classes.
+    long slimBytes = sizeOf(slimJar);
+    long fullBytes = sizeOf(fullClasspath);
+    assertTrue(slimBytes < fullBytes / 2,
+               "Slim jar (" + slimBytes + " B) is not less than half of the class path (" + fullBytes + " B)");
+    long slimClassFiles = countClassFiles(slimJar);
+    long fullClassFiles = countClassFiles(fullClasspath);
+    assertTrue(slimClassFiles < fullClassFiles / 2,
+               "Slim jar contains " + slimClassFiles + " classes, the class path " + fullClassFiles);
+    // Shrinking cannot remove classes which are actually used, so the
+    // classes loaded at runtime are only expected not to grow.
+    assertTrue(slim.classes <= full.classes,
+               "Slim jar loads " + slim.classes + " classes instead of " + full.classes);
+    // Relocated classes have slightly longer names.
+    assertTrue(slim.metaspaceBytes <= full.metaspaceBytes * 101 / 100,
+               "Metaspace of slim jar (" + slim.metaspaceBytes + " B) exceeds " + full.metaspaceBytes + " B");
+  }
+
+  private Usage run(
+      String name, String processorClasspath, String userClasspath, String launcherClasspath,
+      Path... files) throws IOException, InterruptedException
+  {
+    Path output = tempDir.resolve(name);
+    Path log = tempDir.resolve(name + ".log");
+    List<String> command = new ArrayList<>(List.of(
+        Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", launcherClasspath + File.pathSeparator + processorClasspath,
+        Launcher.class.getName(),
+        "--classpath", userClasspath,
+        "--threads", "1",
+        "--output", output.toString()));
+    for (Path file : files) {
+      command.add(file.toString());
+    }
+    Process process = new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(log.toFile())
+        .start();
+    int exitCode = process.waitFor();
+    List<String> lines = Files.readAllLines(log);
+    assertEquals(0, exitCode, () -> name + " failed:\n" + String.join("\n", lines));
+    return lines.stream()
+        .filter(line -> line.startsWith(Launcher.PREFIX))
+        .map(Usage::parse)
+        .findFirst()
+        .orElseThrow(() -> new AssertionError(name + " did not report its usage:\n" + String.join("\n", lines)));
+  }
+
+  private static Map<String, String> readTree(Path directory) throws IOException {
+    Map<String, String> result = new TreeMap<>();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        result.put(directory.relativize(file).toString().replace(File.separatorChar, '/'), Files.readString(file));
+      }
+    }
+    return result;
+  }
+
+  private static long sizeOf(String classpath) throws IOException {
+    long size = 0;
+    for (String entry : classpath.split(File.pathSeparator)) {
+      Path path = Path.of(entry);
+      if (!Files.exists(path)) {
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(path)) {
+        for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+          size += Files.size(file);
+        }
+      }
+    }
+    return size;
+  }
+
+  private static long countClassFiles(String classpath) throws IOException {
+    long count = 0;
+    for (String entry : classpath.split(File.pathSeparator)) {
+      Path path = Path.of(entry);
+      if (Files.isDirectory(path)) {
+        try (Stream<Path> files = Files.walk(path)) {
+          count += files.filter(file -> file.toString().endsWith(".class")).count();
+        }
+      }
+      else if (Files.isRegularFile(path)) {
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+          count += zip.stream().filter(zipEntry -> zipEntry.getName().endsWith(".class")).count();
+        }
+      }
+    }
+    return count;
+  }
+
+  private static String requiredProperty(String key) {
+    String value = System.getProperty(key);
+    assertNotNull(value, "Missing system property " + key + ", run with gradle slimTest");
+    return value;
+  }
+
+  private static final class Usage {
+    final long classes;
+    final long metaspaceBytes;
+
+    Usage(long classes, long metaspaceBytes) {
+      this.classes = classes;
+      this.metaspaceBytes = metaspaceBytes;
+    }
+
+    static Usage parse(String line) {
+      String[] values = line.substring(Launcher.PREFIX.length()).split(" ");
+      return new Usage(Long.parseLong(values[0]), Long.parseLong(values[1]));
+    }
+
+    static Usage min(Usage a, Usage b) {
+      return a == null ? b : new Usage(
+          Math.min(a.classes, b.classes),
+          Math.min(a.metaspaceBytes, b.metaspaceBytes));
+    }
+  }
+
+  /**
+   * Runs {@link GrammarKitMain} and reports the number of loaded classes
+   * and the used metaspace afterwards.
+   */
+  static final class Launcher {
+    static final String PREFIX = "usage: ";
+
+    public static void main(String[] args) {
+      int exitCode = GrammarKitMain.run(args, System.err);
+      long metaspace = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getName().equals("Metaspace")) {
+          metaspace += pool.getUsage().getUsed();
+        }
+      }
+      System.out.println(PREFIX +
+                         ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() + " " +
+                         metaspace);
+      System.exit(exitCode);
+    }
+  }
+}
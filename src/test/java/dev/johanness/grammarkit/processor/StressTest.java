@@ -0,0 +1,127 @@
+package dev.johanness.grammarkit.processor;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.CompilationSubject;
+import com.google.testing.compile.Compiler;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the processor on large synthetic grammars and fails if the
+ * compilation exceeds the budgets in {@code stress-budgets.properties}.
+ * Run with {@code gradle stressTest}.
+ */
+@Tag("stress")
+class StressTest {
+  private static final long MEGABYTE = 1024 * 1024;
+
+  @TempDir
+  Path tempDir;
+
+  @ParameterizedTest(name = "{0}")
+  @CsvSource({
+      // name, rules, fan-out, psiImplUtilClass, extends depth, extra overloads
+      "rules1k, 1000, 10, false, 1, 0",
+      "rules5k, 5000, 10, false, 1, 0",
+      "rules20k, 20000, 10, false, 1, 0",
+      "deepExtends5k, 5000, 10, false, 200, 0",
+      "overloads2k, 2000, 10, true, 1, 4",
+  })
+  void generate(
+      String name, int rules, int fanOut, boolean utilClass,
+      int extendsDepth, int extraOverloads) throws IOException
+  {
+    SyntheticGrammar grammar = new SyntheticGrammar(rules, fanOut, utilClass, extendsDepth, extraOverloads);
+    Path bnfFile = tempDir.resolve("synth.bnf");
+    Files.writeString(bnfFile, grammar.getBnf());
+    Properties budgets = loadBudgets();
+
+    Usage usage = Usage.start();
+    Compilation compilation = Compiler.javac()
+        .withProcessors(new GrammarKitProcessor())
+        .withOptions("-Aparser=" + bnfFile, "-source" , "11")
+        .compile(grammar.getSources());
+    usage.stop();
+
+    CompilationSubject.assertThat(compilation)
+        .succeeded();
+    assertWithinBudget(budgets, name + ".millis", usage.nanos / 1_000_000);
+    assertWithinBudget(budgets, name + ".allocatedMegabytes", usage.allocatedBytes / MEGABYTE);
+    assertWithinBudget(budgets, name + ".peakHeapMegabytes", usage.peakHeapBytes / MEGABYTE);
+  }
+
+  private static void assertWithinBudget(Properties budgets, String key, long actual) {
+    String budget = budgets.getProperty(key);
+    assertNotNull(budget, "Missing budget: " + key);
+    long limit = Long.parseLong(budget.strip());
+    assertTrue(actual <= limit, key + " is " + actual + ", budget is " + limit);
+  }
+
+  private static Properties loadBudgets() throws IOException {
+    Properties budgets = new Properties();
+    try (InputStream stream = StressTest.class.getResourceAsStream("stress-budgets.properties")) {
+      assertNotNull(stream, "Missing stress-budgets.properties");
+      budgets.load(stream);
+    }
+    return budgets;
+  }
+
+  /**
+   * Wall time, bytes allocated by the current thread, and peak usage of
+   * the heap. The processor generates grammars on the current thread,
+   * unless {@code -Agrammarkit.threads} is used.
+   */
+  private static final class Usage {
+    private final long startNanos;
+    private final long startAllocatedBytes;
+    long nanos;
+    long allocatedBytes;
+    long peakHeapBytes;
+
+    private Usage() {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+      startAllocatedBytes = allocatedBytes();
+      startNanos = System.nanoTime();
+    }
+
+    static Usage start() {
+      System.gc();
+      return new Usage();
+    }
+
+    void stop() {
+      nanos = System.nanoTime() - startNanos;
+      allocatedBytes = allocatedBytes() - startAllocatedBytes;
+      // The pools peak at different times, so the sum is an upper bound.
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+      }
+    }
+
+    private static long allocatedBytes() {
+      com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package dev.johanness.grammarkit.processor;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generator of synthetic grammars for benchmarks and stress tests.
+ *
+ * <p>The rules form a balanced tree. Every inner rule is a private choice
+ * over up to {@code fanOut} other rules, and every leaf rule matches a
+ * list of identifiers. If a {@code psiImplUtilClass} is used, every leaf
+ * rule declares a method which is implemented by an overload in the
+ * utility class.
+ *
+ * <p>Leaf rules can form chains of {@code extends} up to the given depth,
+ * and the utility class can declare additional overloads with more
+ * parameters for every leaf rule.
+ */
+final class SyntheticGrammar {
+  static final String PACKAGE = "org.example.synth";
+  static final String PARSER_CLASS = "org.example.SynthParser";
+  static final String ELEMENT_TYPE_CLASS = PACKAGE + ".SynthElementType";
+  static final String TOKEN_TYPE_CLASS = PACKAGE + ".SynthTokenType";
+  static final String UTIL_CLASS = PACKAGE + ".impl.SynthUtil";
+
+  private final int rules;
+  private final int fanOut;
+  private final boolean withUtilClass;
+  private final int extendsDepth;
+  private final int extraOverloads;
+
+  SyntheticGrammar(int rules, int fanOut, boolean withUtilClass) {
+    this(rules, fanOut, withUtilClass, 1, 0);
+  }
+
+  SyntheticGrammar(int rules, int fanOut, boolean withUtilClass, int extendsDepth, int extraOverloads) {
+    this.rules = rules;
+    this.fanOut = fanOut;
+    this.withUtilClass = withUtilClass;
+    this.extendsDepth = extendsDepth;
+    this.extraOverloads = extraOverloads;
+  }
+
+  int getRules() {
+    return rules;
+  }
+
+  @NotNull String getBnf() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("""
+        {
+          parserClass="%s"
+          extends="com.intellij.extapi.psi.ASTWrapperPsiElement"
+          psiClassPrefix="Synth"
+          psiImplClassSuffix="Impl"
+          psiPackage="%s"
+          psiImplPackage="%s.impl"
+          elementTypeHolderClass="%s.SynthTypes"
+          elementTypeClass="%s"
+          tokenTypeClass="%s"
+        """.formatted(PARSER_CLASS, PACKAGE, PACKAGE, PACKAGE, ELEMENT_TYPE_CLASS, TOKEN_TYPE_CLASS));
+    if (withUtilClass) {
+      builder.append("  psiImplUtilClass=\"").append(UTIL_CLASS).append("\"\n");
+    }
+    builder.append("""
+          tokens = [ DOT='.' COMMA=',' ID='regexp:\\w+' ]
+        }
+
+        synthFile ::= rule_0*
+        """);
+    int leaves = 0;
+    int previousLeaf = -1;
+    for (int i = 0; i < rules; ++i) {
+      List<String> children = children(i);
+      if (children.isEmpty()) {
+        List<String> attributes = new ArrayList<>(2);
+        if (withUtilClass) {
+          attributes.add("methods=[ describe ]");
+        }
+        if (extendsDepth > 1 && leaves % extendsDepth != 0) {
+          attributes.add("extends=rule_" + previousLeaf);
+        }
+        builder.append("rule_").append(i).append(" ::= ID (COMMA ID)* DOT");
+        if (!attributes.isEmpty()) {
+          builder.append(" { ").append(String.join(" ", attributes)).append(" }");
+        }
+        leaves += 1;
+        previousLeaf = i;
+      }
+      else {
+        builder.append("private rule_").append(i).append(" ::= ").append(String.join(" | ", children));
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the utility class with {@code 1 + extraOverloads} overloads of
+   * {@code describe} for every leaf rule. The parameter types do not exist
+   * before the grammar has been generated.
+   */
+  @NotNull JavaFileObject getUtilClass() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("""
+        package %s.impl;
+
+        import %s.*;
+
+        final class SynthUtil {
+        """.formatted(PACKAGE, PACKAGE));
+    for (int i = 0; i < rules; ++i) {
+      if (children(i).isEmpty()) {
+        StringBuilder parameters = new StringBuilder("SynthRule" + i + " node");
+        for (int overload = 0; overload <= extraOverloads; ++overload) {
+          if (overload > 0) {
+            parameters.append(", int p").append(overload);
+          }
+          builder.append("  static String describe(").append(parameters).append(") {\n")
+              .append("    return \"").append(i).append("\";\n")
+              .append("  }\n");
+        }
+      }
+    }
+    builder.append("}\n");
+    return source(UTIL_CLASS, builder.toString());
+  }
+
+  @NotNull List<JavaFileObject> getSources() {
+    List<JavaFileObject> sources = new ArrayList<>();
+    sources.add(elementTypeClass(ELEMENT_TYPE_CLASS));
+    sources.add(elementTypeClass(TOKEN_TYPE_CLASS));
+    if (withUtilClass) {
+      sources.add(getUtilClass());
+    }
+    return sources;
+  }
+
+  private @NotNull List<String> children(int rule) {
+    List<String> children = new ArrayList<>(fanOut);
+    for (int child = rule * fanOut + 1; child <= rule * fanOut + fanOut && child < rules; ++child) {
+      children.add("rule_" + child);
+    }
+    return children;
+  }
+
+  static @NotNull JavaFileObject elementTypeClass(@NotNull String fullName) {
+    int lastDot = fullName.lastIndexOf('.');
+    String pkg = fullName.substring(0, lastDot);
+    String simpleName = fullName.substring(lastDot + 1);
+    return source(fullName, """
+        package %1$s;
+
+        import com.intellij.psi.tree.IElementType;
+        import org.jetbrains.annotations.NonNls;
+        import org.jetbrains.annotations.NotNull;
+
+        public class %2$s extends IElementType {
+            public %2$s(@NotNull @NonNls String debugName) {
+                super(debugName, null);
+            }
+        }
+        """.formatted(pkg, simpleName));
+  }
+
+  static @NotNull JavaFileObject source(@NotNull String fullName, @NotNull String content) {
+    return new StringSource(fullName, content);
+  }
+
+  private static final class StringSource extends SimpleJavaFileObject {
+    private final @NotNull String content;
+
+    StringSource(@NotNull String fullName, @NotNull String content) {
+      super(URI.create("string:///" + fullName.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+      this.content = content;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return content;
+    }
+  }
+}